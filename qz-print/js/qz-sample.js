@@ -867,9 +867,10 @@ function sendSerialData() {
 
 /***************************************************************************
 * This function is called when serial data is sent from the port.
+* portName is the port the data came from.
 ***************************************************************************/ 
-function qzSerialReturned(returnData) {
-	alert("Received Serial Data: " + returnData);
+function qzSerialReturned(returnData, portName) {
+	alert("Received Serial Data from " + portName + ": " + returnData);
 }
 
 /***************************************************************************
@@ -25,7 +25,11 @@
 
 package qz;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 
@@ -124,6 +128,22 @@ public final class ByteArrayBuilder {
         return this;
     }
     
+    /**
+     * Appends the contents of another <code>ByteArrayBuilder</code> without
+     * copying them. The underlying arrays are shared, so neither builder's
+     * arrays should be modified afterwards.
+     * Returns this same object to allow chaining calls
+     * 
+     * @param bab
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(ByteArrayBuilder bab){
+        this.resetContents();
+        length+=bab.length;
+        buffer.addAll(bab.buffer);
+        return this;
+    }
+    
     /**
      * Convenience method for append(byte[]) combined with a StringBuffer of specified
      * charset
@@ -170,4 +190,89 @@ public final class ByteArrayBuilder {
         }
         return contents;
     }
+    
+    /**
+     * Writes the contents of this <code>ByteArrayBuilder</code> to
+     * <code>out</code> one appended array at a time, without first copying
+     * them into a single array.
+     * 
+     * @param out The stream to write to
+     * @throws IOException 
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if(contents!=null) {
+            out.write(contents);
+            return;
+        }
+        for (byte[] bs:buffer){
+            out.write(bs);
+        }
+    }
+    
+    /**
+     * Returns the contents of this <code>ByteArrayBuilder</code> as one
+     * <code>ByteBuffer</code> per appended array, wrapping the arrays rather
+     * than copying them. Useful for gathering writes.
+     * 
+     * @return The contents as an array of <code>ByteBuffer</code>s
+     */
+    public ByteBuffer[] getByteBuffers() {
+        if(contents!=null) {
+            return new ByteBuffer[] { ByteBuffer.wrap(contents) };
+        }
+        ByteBuffer[] buffers = new ByteBuffer[buffer.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(buffer.get(i));
+        }
+        return buffers;
+    }
+    
+    /**
+     * Returns an <code>InputStream</code> that reads the contents of this
+     * <code>ByteArrayBuilder</code> one appended array at a time, without
+     * first copying them into a single array.
+     * 
+     * @return An <code>InputStream</code> over the contents
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            private int chunk = 0;
+            private int pos = 0;
+            
+            private byte[] current() {
+                while(chunk < buffer.size() && pos >= buffer.get(chunk).length) {
+                    chunk++;
+                    pos = 0;
+                }
+                return chunk < buffer.size() ? buffer.get(chunk) : null;
+            }
+            
+            @Override
+            public int read() {
+                byte[] bs = current();
+                return bs == null ? -1 : bs[pos++] & 0xFF;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                byte[] bs = current();
+                if (bs == null) {
+                    return -1;
+                }
+                int count = Math.min(len, bs.length - pos);
+                System.arraycopy(bs, pos, b, off, count);
+                pos += count;
+                return count;
+            }
+            
+            @Override
+            public int available() {
+                byte[] bs = current();
+                return bs == null ? 0 : bs.length - pos;
+            }
+        };
+    }
 }
@@ -0,0 +1,144 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.UnsupportedEncodingException;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites raw print data so the printer makes the copies itself, using the
+ * quantity commands of the printer language. This is only done when the
+ * result is certain to match sending the data once per copy, e.g. a single
+ * ZPL format with no serialized fields or a single EPL print command with no
+ * counters.
+ */
+public class CopyUtilities {
+
+    /**
+     * Jobs larger than this are not scanned for copy commands and are
+     * simply sent once per copy
+     */
+    public static final int MAX_SCAN_LENGTH = 4 * 1024 * 1024;
+
+    // Single byte charset that maps every byte to a char and back unchanged
+    private static final String BYTE_CHARSET = "ISO-8859-1";
+
+    private static final Pattern EPL_CLEAR = Pattern.compile("(?m)^N\\r?$");
+    private static final Pattern EPL_PRINT = Pattern.compile("(?m)^P(\\d+)(,\\d+)?\\r?$");
+    private static final Pattern EPL_COUNTER = Pattern.compile("(?m)^[CV]\\d");
+
+    /**
+     * Returns a copy of <code>data</code> that makes the printer produce
+     * <code>copies</code> copies, or null if the data isn't in a language
+     * this can be done for safely.
+     *
+     * @param data The raw job data
+     * @param copies The number of copies to print
+     * @return The rewritten data, or null
+     */
+    public static ByteArrayBuilder applyCopies(ByteArrayBuilder data, int copies) {
+        if (copies < 2 || data.getLength() > MAX_SCAN_LENGTH) {
+            return null;
+        }
+
+        String raw;
+        try {
+            raw = new String(data.getByteArray(), BYTE_CHARSET);
+        } catch (UnsupportedEncodingException ex) {
+            LogIt.log(Level.WARNING, "Unsupported encoding.", ex);
+            return null;
+        }
+
+        String result = applyZPLCopies(raw, copies);
+        if (result == null) {
+            result = applyEPLCopies(raw, copies);
+        }
+        if (result == null) {
+            return null;
+        }
+
+        try {
+            return new ByteArrayBuilder(result.getBytes(BYTE_CHARSET));
+        } catch (UnsupportedEncodingException ex) {
+            LogIt.log(Level.WARNING, "Unsupported encoding.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Adds <code>^PQ</code> to a job holding exactly one ZPL format.
+     *
+     * @param raw The raw job data
+     * @param copies The number of copies to print
+     * @return The rewritten data, or null if the job isn't a single format
+     */
+    static String applyZPLCopies(String raw, int copies) {
+        int start = raw.indexOf("^XA");
+        int end = raw.lastIndexOf("^XZ");
+        if (start < 0 || end < start
+                || raw.indexOf("^XA", start + 3) >= 0
+                || raw.indexOf("^XZ") != end) {
+            return null;
+        }
+        // An existing quantity, serialized fields or a changed command
+        // prefix would make ^PQ print something other than N identical jobs
+        if (raw.contains("^PQ") || raw.contains("^SN") || raw.contains("^SF")
+                || raw.contains("^CC") || raw.contains("~CC")) {
+            return null;
+        }
+        LogIt.log("Using ZPL ^PQ" + copies + " for copies");
+        return raw.substring(0, end) + "^PQ" + copies + raw.substring(end);
+    }
+
+    /**
+     * Multiplies the label set count of the only print command in an EPL
+     * job. The job must also clear the image buffer (<code>N</code>) so it
+     * is known to be EPL.
+     *
+     * @param raw The raw job data
+     * @param copies The number of copies to print
+     * @return The rewritten data, or null if the job doesn't have exactly one
+     * EPL print command
+     */
+    static String applyEPLCopies(String raw, int copies) {
+        Matcher m = EPL_PRINT.matcher(raw);
+        if (!EPL_CLEAR.matcher(raw).find() || !m.find()) {
+            return null;
+        }
+        int commandStart = m.start(1);
+        int commandEnd = m.end(1);
+        long sets;
+        try {
+            sets = Long.parseLong(m.group(1)) * copies;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        // Counters and variables change from one label set to the next
+        if (m.find() || sets > 65535 || EPL_COUNTER.matcher(raw).find()) {
+            return null;
+        }
+        LogIt.log("Using EPL P" + sets + " for copies");
+        return raw.substring(0, commandStart) + sets + raw.substring(commandEnd);
+    }
+}
@@ -70,4 +70,8 @@ public class DebugPrinter implements Printer {
     public void setJobTitle(String jobTitle) {
         this.jobTitle = jobTitle;
     }
+
+    public boolean setCopies(int copies) {
+        return false;
+    }
 }
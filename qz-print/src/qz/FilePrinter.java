@@ -85,7 +85,7 @@ public class FilePrinter implements Printer {
         
         try {
              FileOutputStream fos = new FileOutputStream(outputPath);
-             fos.write(data.getByteArray());
+             data.writeTo(fos);
              fos.close();
         } catch (FileNotFoundException ex) {
             LogIt.log(ex);
@@ -112,4 +112,7 @@ public class FilePrinter implements Printer {
         this.jobTitle = jobTitle;
     }
 
+    public boolean setCopies(int copies) {
+        return false;
+    }
 }
@@ -0,0 +1,234 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * GraphicCache remembers which images have been stored in each printer's
+ * graphic memory, so an image that is printed again can be recalled by name
+ * instead of being sent again. Images are keyed by a hash of their converted
+ * bitmap. Each printer has a fixed number of slots; when they are all taken
+ * the least recently used image's slot (and printer-side name) is reused, so
+ * the printer never holds more than that many cached graphics.
+ * <p>
+ * Jobs are prepared in parallel and may be sent in a different order, so a
+ * graphic is only recalled once a job that stored it has been sent, and a
+ * slot is never reused while a job that refers to it is still waiting.
+ * <p>
+ * A printer loses its graphic memory when it restarts, which the client
+ * can't see, so stored graphics are trusted for a limited time and then
+ * stored again. <code>clear</code> forces this for a printer that is known
+ * to have restarted.
+ */
+public class GraphicCache {
+
+    public static final int DEFAULT_SLOTS = 16;
+    public static final long DEFAULT_TIMEOUT = 30 * 60 * 1000;
+
+    private final HashMap<String, LinkedHashMap<String, Graphic>> printers = new HashMap<String, LinkedHashMap<String, Graphic>>();
+    private int slots = DEFAULT_SLOTS;
+    private long timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * A graphic in one printer's memory
+     */
+    private static class Graphic {
+
+        final int slot;
+        final HashSet<Integer> storingJobs = new HashSet<Integer>();
+        final HashSet<Integer> pendingJobs = new HashSet<Integer>();
+        long storedAt = -1;
+
+        Graphic(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * Where a job finds its image in printer memory
+     */
+    public static class Recall {
+
+        private final String name;
+        private final boolean store;
+
+        Recall(int slot, boolean store) {
+            this.name = "QZG" + (slot < 10 ? "0" : "") + slot;
+            this.store = store;
+        }
+
+        /**
+         * @return the name the graphic is stored under on the printer, up to
+         * eight characters
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return true if the job must store the graphic before recalling
+         * it, false if the printer already has it
+         */
+        public boolean isStore() {
+            return store;
+        }
+    }
+
+    /**
+     * Find or assign the printer-side graphic for an image. The job must
+     * report back through <code>jobFinished</code>.
+     *
+     * @param destination The printer the image will be sent to
+     * @param hash The hash of the converted image
+     * @param jobId The job the image belongs to
+     * @return Where to store and recall the image, or null if every slot is
+     * in use by waiting jobs and the image should be sent inline
+     */
+    public synchronized Recall lookup(String destination, String hash, int jobId) {
+        LinkedHashMap<String, Graphic> graphics = printers.get(destination);
+        if (graphics == null) {
+            // Access ordered, so iteration starts at the least recently used
+            graphics = new LinkedHashMap<String, Graphic>(slots * 2, 0.75f, true);
+            printers.put(destination, graphics);
+        }
+
+        Graphic graphic = graphics.get(hash);
+        if (graphic == null) {
+            int slot = allocateSlot(graphics);
+            if (slot < 0) {
+                return null;
+            }
+            graphic = new Graphic(slot);
+            graphics.put(hash, graphic);
+        }
+
+        graphic.pendingJobs.add(jobId);
+        boolean stored = graphic.storedAt >= 0 && System.currentTimeMillis() - graphic.storedAt < timeout;
+        if (!stored) {
+            graphic.storingJobs.add(jobId);
+        }
+        return new Recall(graphic.slot, !stored);
+    }
+
+    /**
+     * Find a free slot, or free the least recently used graphic no waiting
+     * job refers to
+     *
+     * @return The slot, or -1 if there is none
+     */
+    private int allocateSlot(LinkedHashMap<String, Graphic> graphics) {
+        boolean[] used = new boolean[slots];
+        for (Graphic graphic : graphics.values()) {
+            if (graphic.slot < slots) {
+                used[graphic.slot] = true;
+            }
+        }
+        for (int i = 0; i < slots; i++) {
+            if (!used[i]) {
+                return i;
+            }
+        }
+        Iterator<Graphic> iterator = graphics.values().iterator();
+        while (iterator.hasNext()) {
+            Graphic graphic = iterator.next();
+            if (graphic.pendingJobs.isEmpty()) {
+                iterator.remove();
+                return graphic.slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Record that a job has been sent, or failed or was cancelled. Graphics
+     * the job stored can be recalled from now on if it was sent.
+     *
+     * @param jobId The job
+     * @param sent true if the job reached its printer
+     */
+    public synchronized void jobFinished(int jobId, boolean sent) {
+        Integer id = Integer.valueOf(jobId);
+        for (LinkedHashMap<String, Graphic> graphics : printers.values()) {
+            Iterator<Graphic> iterator = graphics.values().iterator();
+            while (iterator.hasNext()) {
+                Graphic graphic = iterator.next();
+                if (!graphic.pendingJobs.remove(id)) {
+                    continue;
+                }
+                if (graphic.storingJobs.remove(id) && sent) {
+                    graphic.storedAt = System.currentTimeMillis();
+                }
+                if (graphic.storedAt < 0 && graphic.pendingJobs.isEmpty()) {
+                    // Never made it to the printer
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget what is stored on a printer, e.g. after it was restarted.
+     * Graphics will be stored again the next time they are printed.
+     *
+     * @param destination The printer
+     */
+    public synchronized void clear(String destination) {
+        LinkedHashMap<String, Graphic> graphics = printers.get(destination);
+        if (graphics != null) {
+            for (Graphic graphic : graphics.values()) {
+                graphic.storedAt = -1;
+            }
+        }
+    }
+
+    /**
+     * Forget what is stored on every printer
+     */
+    public synchronized void clear() {
+        for (String destination : printers.keySet()) {
+            clear(destination);
+        }
+    }
+
+    /**
+     * Set how many graphics are kept on each printer. Lowering the number
+     * only takes effect as slots above it are freed.
+     *
+     * @param slots The number of graphics, at most 100
+     */
+    public synchronized void setSlots(int slots) {
+        this.slots = Math.max(1, Math.min(100, slots));
+    }
+
+    /**
+     * Set how long a stored graphic is trusted before it is stored again
+     *
+     * @param timeout Milliseconds
+     */
+    public synchronized void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+}
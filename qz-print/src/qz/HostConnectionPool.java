@@ -0,0 +1,315 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+
+/**
+ * HostConnectionPool keeps raw socket connections to remote hosts open
+ * between jobs so back-to-back jobs to the same host and port don't each
+ * pay for a new TCP connection. Connections are checked before they are
+ * reused, reopened if the host dropped them and closed once they have been
+ * idle for longer than the idle timeout. Many raw printers only accept one
+ * connection at a time, so the idle timeout should be kept short when other
+ * machines print to the same printer. An idle timeout of zero closes each
+ * connection as soon as the job is sent.
+ */
+public class HostConnectionPool {
+
+    public static final int DEFAULT_IDLE_TIMEOUT = 10000;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    private final HashMap<String, LinkedList<HostConnection>> idle = new HashMap<String, LinkedList<HostConnection>>();
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private Timer reaper;
+
+    /**
+     * Send data to a remote host, reusing an open connection if there is
+     * one. If writing to a reused connection fails before any of the data
+     * reached the socket it is replaced with a new connection and the data is
+     * sent again. Once part of the data may have reached the host it is never
+     * sent again, so a job can't be printed twice or in part.
+     *
+     * @param data The data to send
+     * @param host The target host
+     * @param port The port on the target host
+     * @throws IOException If the data could not be sent on a new connection
+     */
+    public void send(ByteArrayBuilder data, String host, int port) throws IOException {
+        HostConnection connection = borrow(host, port);
+        try {
+            connection.write(data);
+        } catch (IOException ex) {
+            connection.close();
+            if (!connection.reused || connection.isStarted()) {
+                throw ex;
+            }
+            LogIt.log(Level.WARNING, "Connection to " + connection.key + " was lost, reconnecting.");
+            connection = open(host, port);
+            try {
+                connection.write(data);
+            } catch (IOException retryEx) {
+                connection.close();
+                throw retryEx;
+            }
+        }
+        giveBack(connection);
+    }
+
+    /**
+     * Set how long an unused connection stays open
+     *
+     * @param idleTimeout Milliseconds, or 0 to close connections after each
+     * job
+     */
+    public synchronized void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+        if (this.idleTimeout == 0) {
+            closeAll();
+        }
+    }
+
+    /**
+     * Set how long to wait for a new connection to be accepted
+     *
+     * @param connectTimeout Milliseconds, or 0 to wait indefinitely
+     */
+    public synchronized void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = Math.max(0, connectTimeout);
+    }
+
+    /**
+     * Close every idle connection
+     */
+    public synchronized void closeAll() {
+        for (LinkedList<HostConnection> connections : idle.values()) {
+            for (HostConnection connection : connections) {
+                connection.close();
+            }
+        }
+        idle.clear();
+        if (reaper != null) {
+            reaper.cancel();
+            reaper = null;
+        }
+    }
+
+    private HostConnection borrow(String host, int port) throws IOException {
+        String key = host + ":" + port;
+        synchronized (this) {
+            LinkedList<HostConnection> connections = idle.get(key);
+            while (connections != null && !connections.isEmpty()) {
+                HostConnection connection = connections.removeFirst();
+                if (!connection.isExpired(idleTimeout) && connection.isHealthy()) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return open(host, port);
+    }
+
+    private HostConnection open(String host, int port) throws IOException {
+        int timeout;
+        synchronized (this) {
+            timeout = connectTimeout;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), timeout);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        LogIt.log("Opened connection to " + host + ":" + port);
+        return new HostConnection(host + ":" + port, socket);
+    }
+
+    private synchronized void giveBack(HostConnection connection) {
+        if (idleTimeout == 0) {
+            connection.close();
+            return;
+        }
+        connection.lastUsed = System.currentTimeMillis();
+        LinkedList<HostConnection> connections = idle.get(connection.key);
+        if (connections == null) {
+            connections = new LinkedList<HostConnection>();
+            idle.put(connection.key, connections);
+        }
+        connections.addFirst(connection);
+        startReaper();
+    }
+
+    /**
+     * Starts the timer that closes connections once they have been idle for
+     * too long. The timer stops itself when there is nothing left to close.
+     */
+    private void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+        reaper = new Timer("qz-host-connections", true);
+        long period = Math.max(1000, idleTimeout / 2);
+        reaper.schedule(new TimerTask() {
+            public void run() {
+                closeExpired();
+            }
+        }, period, period);
+    }
+
+    private synchronized void closeExpired() {
+        Iterator<LinkedList<HostConnection>> lists = idle.values().iterator();
+        while (lists.hasNext()) {
+            LinkedList<HostConnection> connections = lists.next();
+            Iterator<HostConnection> iterator = connections.iterator();
+            while (iterator.hasNext()) {
+                HostConnection connection = iterator.next();
+                if (connection.isExpired(idleTimeout)) {
+                    iterator.remove();
+                    connection.close();
+                }
+            }
+            if (connections.isEmpty()) {
+                lists.remove();
+            }
+        }
+        if (idle.isEmpty() && reaper != null) {
+            reaper.cancel();
+            reaper = null;
+        }
+    }
+
+    /**
+     * A single open connection to a host
+     */
+    private static class HostConnection {
+
+        final String key;
+        final Socket socket;
+        final StartedOutputStream socketOut;
+        final OutputStream out;
+        long lastUsed = System.currentTimeMillis();
+        boolean reused = false;
+
+        HostConnection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.socketOut = new StartedOutputStream(socket.getOutputStream());
+            this.out = new BufferedOutputStream(socketOut, 8192);
+        }
+
+        void write(ByteArrayBuilder data) throws IOException {
+            socketOut.started = false;
+            data.writeTo(out);
+            out.flush();
+        }
+
+        /**
+         * @return true if the last write handed any bytes to the socket
+         */
+        boolean isStarted() {
+            return socketOut.started;
+        }
+
+        boolean isExpired(int idleTimeout) {
+            return System.currentTimeMillis() - lastUsed > idleTimeout;
+        }
+
+        /**
+         * Checks that the host hasn't closed the connection. Raw printers
+         * don't normally send anything back unless asked, so anything
+         * waiting to be read is discarded.
+         */
+        boolean isHealthy() {
+            if (socket.isClosed() || !socket.isConnected() || socket.isOutputShutdown() || socket.isInputShutdown()) {
+                return false;
+            }
+            try {
+                InputStream in = socket.getInputStream();
+                socket.setSoTimeout(1);
+                while (true) {
+                    int available = in.available();
+                    if (available > 0) {
+                        in.skip(available);
+                    } else if (in.read() == -1) {
+                        return false;
+                    }
+                }
+            } catch (SocketTimeoutException ex) {
+                // Nothing to read and the connection is still open
+                return true;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                LogIt.log(Level.WARNING, "Could not close connection to " + key + ".", ex);
+            }
+        }
+    }
+
+    /**
+     * Remembers whether anything was handed to the socket, counting writes
+     * that failed part way
+     */
+    private static class StartedOutputStream extends FilterOutputStream {
+
+        boolean started = false;
+
+        StartedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            started = true;
+            out.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                started = true;
+            }
+            out.write(b, off, len);
+        }
+    }
+}
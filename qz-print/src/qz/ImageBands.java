@@ -0,0 +1,114 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ImageBands splits the rows of an image into horizontal bands and processes
+ * them in parallel. The calling thread works through bands as well, so the
+ * work finishes even when every worker is busy with something else.
+ */
+public class ImageBands {
+
+    /**
+     * Work done on one band of rows
+     */
+    public interface Band {
+
+        /**
+         * Process rows <code>from</code> (inclusive) to <code>to</code>
+         * (exclusive)
+         *
+         * @param from The first row of the band
+         * @param to The row after the last row of the band
+         */
+        public abstract void process(int from, int to);
+    }
+
+    /**
+     * Processes <code>rows</code> rows in bands of <code>bandRows</code>,
+     * returning once every band is done
+     *
+     * @param executor Runs bands alongside the calling thread, or null to
+     * process every band on the calling thread
+     * @param workers The most workers to use besides the calling thread
+     * @param rows The number of rows
+     * @param bandRows The number of rows in a band
+     * @param band The work to do on each band
+     */
+    public static void run(Executor executor, int workers, final int rows, final int bandRows, final Band band) {
+        final int bands = (rows + bandRows - 1) / bandRows;
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(bands);
+        final RuntimeException[] error = new RuntimeException[1];
+
+        Runnable worker = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < bands) {
+                    try {
+                        band.process(i * bandRows, Math.min(rows, (i + 1) * bandRows));
+                    } catch (RuntimeException ex) {
+                        synchronized (error) {
+                            error[0] = ex;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        if (executor != null) {
+            for (int i = 0; i < Math.min(workers, bands - 1); i++) {
+                try {
+                    executor.execute(worker);
+                } catch (RejectedExecutionException ex) {
+                    break;
+                }
+            }
+        }
+        worker.run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+    }
+}
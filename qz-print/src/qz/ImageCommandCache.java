@@ -0,0 +1,179 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ImageCommandCache keeps the printer commands of recently converted images,
+ * so an image that is appended again with the same language and settings is
+ * only decoded and converted once. Entries are keyed by a hash of the image
+ * source plus the conversion settings, and the least recently used entries
+ * are dropped once the cached commands add up to more than the byte limit.
+ */
+public class ImageCommandCache {
+
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    // Access ordered, so iteration starts at the least recently used
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long totalBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Builds the cache key for a converted image
+     *
+     * @param source The hash of the image data, or its URL and ETag
+     * @param charset The job's character set, used for text commands
+     * @param lang The printer language
+     * @param dotDensity The ESC/P dot density
+     * @param imageX The image's x position
+     * @param imageY The image's y position
+     * @param imageOptions The conversion options, or null for the defaults
+     * @return The key
+     */
+    public static String getKey(String source, Charset charset, LanguageType lang, int dotDensity, int imageX, int imageY, ImageOptions imageOptions) {
+        StringBuilder key = new StringBuilder(source)
+                .append('|').append(charset == null ? "" : charset.name())
+                .append('|').append(lang)
+                .append('|').append(dotDensity)
+                .append('|').append(imageX).append(',').append(imageY);
+        if (imageOptions != null) {
+            key.append('|').append(imageOptions.getKey());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Hashes image data for use as the source part of a key
+     *
+     * @param data The image data
+     * @return The hash as a hex string
+     */
+    public static String hash(byte[] data) {
+        try {
+            return ByteUtilities.bytesToHex(MessageDigest.getInstance("MD5").digest(data));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Get the commands for a converted image
+     *
+     * @param key The image's key
+     * @return The commands, or null if the image isn't cached. The array is
+     * shared and must not be modified.
+     */
+    public synchronized byte[] get(String key) {
+        byte[] command = entries.get(key);
+        if (command == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return command;
+    }
+
+    /**
+     * Cache the commands for a converted image. Commands larger than the
+     * whole cache are not kept.
+     *
+     * @param key The image's key
+     * @param command The commands, which must not be modified afterwards
+     */
+    public synchronized void put(String key, byte[] command) {
+        if (command.length > maxBytes) {
+            return;
+        }
+        byte[] replaced = entries.put(key, command);
+        if (replaced != null) {
+            totalBytes -= replaced.length;
+        }
+        totalBytes += command.length;
+        trim();
+    }
+
+    /**
+     * Drop least recently used entries until the cache fits its byte limit
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            totalBytes -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Set the most bytes of commands kept in the cache
+     *
+     * @param maxBytes The limit, or 0 to disable caching
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        trim();
+    }
+
+    /**
+     * @return The most bytes of commands kept in the cache
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The bytes of commands currently cached
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return The number of images found in the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of images that had to be converted
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Drop every cached image
+     */
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+}
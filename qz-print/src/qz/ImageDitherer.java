@@ -0,0 +1,166 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.Arrays;
+
+/**
+ * ImageDitherer turns rows of gray levels into black and white dots one row
+ * at a time, top to bottom. Error diffusion keeps only the error still to be
+ * spread to the next rows, so memory use depends on the image width only.
+ */
+public class ImageDitherer {
+
+    /**
+     * Floyd–Steinberg error diffusion. Spreads the whole error over four
+     * neighbours; smooth gradients, best for photos.
+     */
+    public static final int FLOYD_STEINBERG = 1;
+    /**
+     * Atkinson error diffusion. Spreads three quarters of the error over six
+     * neighbours; higher contrast, suits logos and thermal printers.
+     */
+    public static final int ATKINSON = 2;
+    /**
+     * Ordered dithering with an 8x8 Bayer matrix. No error is carried between
+     * pixels, so any row can be dithered on its own.
+     */
+    public static final int BAYER = 3;
+
+    private static final int[] BAYER_MATRIX = {
+        0, 32, 8, 40, 2, 34, 10, 42,
+        48, 16, 56, 24, 50, 18, 58, 26,
+        12, 44, 4, 36, 14, 46, 6, 38,
+        60, 28, 52, 20, 62, 30, 54, 22,
+        3, 35, 11, 43, 1, 33, 9, 41,
+        51, 19, 59, 27, 49, 17, 57, 25,
+        15, 47, 7, 39, 13, 45, 5, 37,
+        63, 31, 55, 23, 61, 29, 53, 21
+    };
+
+    private final int method;
+    private final int width;
+    private int y = 0;
+    // Error carried to this row and the next two, offset by two pixels so
+    // the kernels never need bounds checks
+    private int[] error0;
+    private int[] error1;
+    private int[] error2;
+
+    /**
+     * Creates a ditherer for rows of <code>width</code> pixels
+     *
+     * @param method FLOYD_STEINBERG, ATKINSON or BAYER
+     * @param width The number of pixels in a row
+     */
+    public ImageDitherer(int method, int width) {
+        this(method, width, 0);
+    }
+
+    /**
+     * Creates a ditherer for rows of <code>width</code> pixels, starting part
+     * way down the image. Only ordered dithering gives the same result as
+     * dithering the rows above first.
+     *
+     * @param method FLOYD_STEINBERG, ATKINSON or BAYER
+     * @param width The number of pixels in a row
+     * @param firstRow The row of the image the first call to
+     * <code>ditherRow</code> is for
+     */
+    public ImageDitherer(int method, int width, int firstRow) {
+        this.method = method;
+        this.width = width;
+        this.y = firstRow;
+        if (method != BAYER) {
+            error0 = new int[width + 4];
+            error1 = new int[width + 4];
+            error2 = new int[width + 4];
+        }
+    }
+
+    /**
+     * Tests if <code>method</code> is one of the dithering methods
+     *
+     * @param method The method to check
+     * @return true if the method is supported
+     */
+    public static boolean isSupported(int method) {
+        return method == FLOYD_STEINBERG || method == ATKINSON || method == BAYER;
+    }
+
+    /**
+     * Dithers the next row. Rows must be passed in order from the top.
+     *
+     * @param row Gray levels from 0 (black) to 255 (white) on input, replaced
+     * with 1 for a black dot and 0 for white
+     */
+    public void ditherRow(int[] row) {
+        switch (method) {
+            case BAYER:
+                int base = (y & 7) * 8;
+                for (int x = 0; x < width; x++) {
+                    row[x] = row[x] < BAYER_MATRIX[base + (x & 7)] * 4 + 2 ? 1 : 0;
+                }
+                break;
+            case ATKINSON:
+                for (int x = 0; x < width; x++) {
+                    int value = row[x] + error0[x + 2];
+                    int black = value < 128 ? 1 : 0;
+                    int e = (value - (black == 1 ? 0 : 255)) >> 3;
+                    error0[x + 3] += e;
+                    error0[x + 4] += e;
+                    error1[x + 1] += e;
+                    error1[x + 2] += e;
+                    error1[x + 3] += e;
+                    error2[x + 2] += e;
+                    row[x] = black;
+                }
+                nextRow();
+                break;
+            case FLOYD_STEINBERG:
+            default:
+                for (int x = 0; x < width; x++) {
+                    int value = row[x] + error0[x + 2];
+                    int black = value < 128 ? 1 : 0;
+                    int e = value - (black == 1 ? 0 : 255);
+                    error0[x + 3] += (e * 7) >> 4;
+                    error1[x + 1] += (e * 3) >> 4;
+                    error1[x + 2] += (e * 5) >> 4;
+                    error1[x + 3] += e >> 4;
+                    row[x] = black;
+                }
+                nextRow();
+        }
+        y++;
+    }
+
+    /**
+     * Moves the error buffers up a row, reusing the finished row's buffer
+     */
+    private void nextRow() {
+        int[] done = error0;
+        error0 = error1;
+        error1 = error2;
+        error2 = done;
+        Arrays.fill(error2, 0);
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.logging.Level;
+import qz.json.JSONException;
+import qz.json.JSONObject;
+
+/**
+ * ImageOptions holds the settings used to convert a raw image element, as
+ * given to <code>appendImage</code> in a JSON object such as
+ * <code>{"dither": "atkinson", "threshold": 140}</code>. Keys that are left
+ * out keep the <code>ImageWrapper</code> defaults.
+ * <ul>
+ * <li><code>quantization</code>: <code>"black"</code>, <code>"luma"</code> or
+ * <code>"alpha"</code>
+ * <li><code>threshold</code>: the luma threshold, 0 to 255
+ * <li><code>alphaThreshold</code>: the alpha threshold, 0 to 255
+ * <li><code>dither</code>: <code>"none"</code>,
+ * <code>"floyd-steinberg"</code>, <code>"atkinson"</code> or
+ * <code>"bayer"</code>
+ * <li><code>dotDensity</code>: the ESC/P bit image mode, e.g. 32 or 33
+ * <li><code>zplCompression</code>: <code>"hex"</code> (default),
+ * <code>"ascii"</code>, <code>"z64"</code> or <code>"auto"</code> for the
+ * shortest
+ * <li><code>escpMode</code>: <code>"bit-image"</code> (default) or
+ * <code>"raster"</code> for the faster <code>GS v 0</code> command of ESC/POS
+ * printers
+ * <li><code>width</code>: the width in dots to scale the image to
+ * <li><code>dpi</code>: the printer's resolution, the image is scaled from
+ * its own resolution to this when no <code>width</code> is given. The
+ * image's resolution is <code>imageDpi</code> if given, otherwise the one
+ * stored in the file (PNG pHYs, JFIF density); when neither is known the
+ * image isn't scaled. PCL, PWG and URF output is also marked with it unless
+ * <code>printerDpi</code> is given.
+ * <li><code>imageDpi</code>: the image's resolution, e.g. 96 for an image
+ * sized in CSS pixels
+ * <li><code>printerDpi</code>: the resolution PCL, PWG and URF output is
+ * marked with (300 by default). The image isn't scaled by it.
+ * <li><code>cache</code>: <code>true</code> to store the image in the
+ * printer's memory and recall it by name when it's printed again (ZPL and
+ * EPL only)
+ * </ul>
+ */
+public class ImageOptions {
+
+    private int quantization = ImageWrapper.CHECK_LUMA;
+    private int lumaThreshold = 127;
+    private int alphaThreshold = 127;
+    private int dithering = ImageWrapper.DITHER_NONE;
+    private int dotDensity = -1;
+    private int zplEncoding = ZplGraphicEncoder.HEX;
+    private int escpMode = ImageWrapper.ESCP_BIT_IMAGE;
+    private int width = 0;
+    private int dpi = 0;
+    private int imageDpi = 0;
+    private int printerDpi = 0;
+    private boolean cache = false;
+
+    /**
+     * Parses options from a JSON object string
+     *
+     * @param json The options, or null or empty for the defaults
+     * @return The parsed options
+     * @throws JSONException If <code>json</code> isn't a JSON object
+     */
+    public static ImageOptions parse(String json) throws JSONException {
+        ImageOptions options = new ImageOptions();
+        if (json == null || json.trim().length() == 0) {
+            return options;
+        }
+        JSONObject o = new JSONObject(json);
+
+        String quantization = o.optString("quantization", "luma");
+        if (quantization.equalsIgnoreCase("black")) {
+            options.quantization = ImageWrapper.CHECK_BLACK;
+        } else if (quantization.equalsIgnoreCase("alpha")) {
+            options.quantization = ImageWrapper.CHECK_ALPHA;
+        } else if (!quantization.equalsIgnoreCase("luma")) {
+            LogIt.log(Level.WARNING, "Unknown quantization \"" + quantization + "\", using luma.");
+        }
+
+        String dither = o.optString("dither", "none");
+        if (dither.equalsIgnoreCase("floyd-steinberg")) {
+            options.dithering = ImageDitherer.FLOYD_STEINBERG;
+        } else if (dither.equalsIgnoreCase("atkinson")) {
+            options.dithering = ImageDitherer.ATKINSON;
+        } else if (dither.equalsIgnoreCase("bayer")) {
+            options.dithering = ImageDitherer.BAYER;
+        } else if (!dither.equalsIgnoreCase("none")) {
+            LogIt.log(Level.WARNING, "Unknown dither \"" + dither + "\", not dithering.");
+        }
+
+        String zplCompression = o.optString("zplCompression", "hex");
+        if (zplCompression.equalsIgnoreCase("ascii")) {
+            options.zplEncoding = ZplGraphicEncoder.ASCII;
+        } else if (zplCompression.equalsIgnoreCase("z64")) {
+            options.zplEncoding = ZplGraphicEncoder.Z64;
+        } else if (zplCompression.equalsIgnoreCase("auto")) {
+            options.zplEncoding = ZplGraphicEncoder.AUTO;
+        } else if (!zplCompression.equalsIgnoreCase("hex")) {
+            LogIt.log(Level.WARNING, "Unknown ZPL compression \"" + zplCompression + "\", using hex.");
+        }
+
+        String escpMode = o.optString("escpMode", "bit-image");
+        if (escpMode.equalsIgnoreCase("raster")) {
+            options.escpMode = ImageWrapper.ESCP_RASTER;
+        } else if (!escpMode.equalsIgnoreCase("bit-image")) {
+            LogIt.log(Level.WARNING, "Unknown ESC/P mode \"" + escpMode + "\", using bit-image.");
+        }
+
+        options.lumaThreshold = o.optInt("threshold", options.lumaThreshold);
+        options.alphaThreshold = o.optInt("alphaThreshold", options.alphaThreshold);
+        options.dotDensity = o.optInt("dotDensity", options.dotDensity);
+        options.width = o.optInt("width", options.width);
+        options.dpi = o.optInt("dpi", options.dpi);
+        options.imageDpi = o.optInt("imageDpi", options.imageDpi);
+        options.printerDpi = o.optInt("printerDpi", options.printerDpi);
+        options.cache = o.optBoolean("cache", options.cache);
+        return options;
+    }
+
+    /**
+     * Applies the options to an image before it's converted
+     *
+     * @param iw The image to convert
+     */
+    public void applyTo(ImageWrapper iw) {
+        iw.setImageQuantizationMethod(quantization);
+        iw.setLumaThreshold(lumaThreshold);
+        iw.setAlphaThreshold(alphaThreshold);
+        iw.setDitheringMethod(dithering);
+        iw.setZplEncoding(zplEncoding);
+        iw.setEscpMode(escpMode);
+        if (dotDensity >= 0) {
+            iw.setDotDensity(dotDensity);
+        }
+        if (printerDpi > 0) {
+            iw.setPrinterDpi(printerDpi);
+        } else if (dpi > 0) {
+            iw.setPrinterDpi(dpi);
+        }
+        if (width > 0) {
+            iw.setTargetWidth(width);
+        } else if (dpi > 0) {
+            int sourceDpi = imageDpi > 0 ? imageDpi : iw.getSourceDpi();
+            if (sourceDpi > 0 && dpi != sourceDpi) {
+                iw.setTargetWidth((int) Math.max(1, Math.round((double) iw.getWidth() * dpi / sourceDpi)));
+            }
+        }
+    }
+
+    /**
+     * Describes the options that change the converted image, for use in
+     * cache keys
+     *
+     * @return The options as a string
+     */
+    public String getKey() {
+        return quantization + "," + lumaThreshold + "," + alphaThreshold + ","
+                + dithering + "," + dotDensity + "," + zplEncoding + "," + escpMode
+                + "," + width + "," + dpi + "," + imageDpi + "," + printerDpi;
+    }
+
+    /**
+     * Whether the image should be kept in the printer's graphic memory
+     *
+     * @return True to store and recall the image through the graphic cache
+     */
+    public boolean isCache() {
+        return cache;
+    }
+}
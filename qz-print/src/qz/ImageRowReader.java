@@ -0,0 +1,227 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * ImageRowReader reads a <code>BufferedImage</code> one row at a time as
+ * ARGB pixels, the same values <code>getRGB</code> returns. The image types
+ * decoders usually produce are read straight from the image's data buffer;
+ * other types fall back to <code>getRGB</code>, one row at a time.
+ */
+public class ImageRowReader implements ImageRowSource {
+
+    private static final int GENERIC = 0;
+    private static final int INT_ARGB = 1;
+    private static final int INT_RGB = 2;
+    private static final int BYTE_BGR = 3;
+    private static final int BYTE_ABGR = 4;
+    private static final int BYTE_INDEXED = 5;
+    private static final int BIT_INDEXED = 6;
+
+    private final BufferedImage image;
+    private final int width;
+    private final int height;
+    private int format = GENERIC;
+    private int[] intData;
+    private byte[] byteData;
+    private int offset;
+    private int scanlineStride;
+    private int pixelStride;
+    private int[] bandOffsets;
+    private int pixelBits;
+    private int dataBitOffset;
+    private int[] palette;
+
+    /**
+     * Creates a reader for <code>image</code>
+     *
+     * @param image The image to read
+     */
+    public ImageRowReader(BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+
+        WritableRaster raster = image.getRaster();
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        if (db.getNumBanks() != 1) {
+            return;
+        }
+        int tx = -raster.getSampleModelTranslateX();
+        int ty = -raster.getSampleModelTranslateY();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_RGB:
+                if (sm instanceof SinglePixelPackedSampleModel && db instanceof DataBufferInt) {
+                    scanlineStride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+                    intData = ((DataBufferInt) db).getData();
+                    offset = db.getOffset() + ty * scanlineStride + tx;
+                    format = image.getType() == BufferedImage.TYPE_INT_ARGB ? INT_ARGB : INT_RGB;
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                if (sm instanceof ComponentSampleModel && db instanceof DataBufferByte) {
+                    ComponentSampleModel csm = (ComponentSampleModel) sm;
+                    scanlineStride = csm.getScanlineStride();
+                    pixelStride = csm.getPixelStride();
+                    bandOffsets = csm.getBandOffsets();
+                    byteData = ((DataBufferByte) db).getData();
+                    offset = db.getOffset() + ty * scanlineStride + tx * pixelStride;
+                    format = image.getType() == BufferedImage.TYPE_3BYTE_BGR ? BYTE_BGR : BYTE_ABGR;
+                }
+                break;
+            case BufferedImage.TYPE_BYTE_GRAY:
+                if (sm instanceof ComponentSampleModel && db instanceof DataBufferByte) {
+                    ComponentSampleModel csm = (ComponentSampleModel) sm;
+                    scanlineStride = csm.getScanlineStride();
+                    pixelStride = csm.getPixelStride();
+                    byteData = ((DataBufferByte) db).getData();
+                    offset = db.getOffset() + ty * scanlineStride + tx * pixelStride + csm.getBandOffsets()[0];
+                    palette = getPalette(image.getColorModel(), 8);
+                    format = BYTE_INDEXED;
+                }
+                break;
+            case BufferedImage.TYPE_BYTE_BINARY:
+                if (sm instanceof MultiPixelPackedSampleModel && db instanceof DataBufferByte) {
+                    MultiPixelPackedSampleModel msm = (MultiPixelPackedSampleModel) sm;
+                    scanlineStride = msm.getScanlineStride();
+                    pixelBits = msm.getPixelBitStride();
+                    dataBitOffset = msm.getDataBitOffset() + tx * pixelBits;
+                    byteData = ((DataBufferByte) db).getData();
+                    offset = db.getOffset() + ty * scanlineStride;
+                    palette = getPalette(image.getColorModel(), pixelBits);
+                    format = BIT_INDEXED;
+                }
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Looks up the ARGB value of every pixel value a color model can hold, so
+     * gray and indexed images are converted exactly as <code>getRGB</code>
+     * converts them.
+     */
+    private static int[] getPalette(ColorModel cm, int bits) {
+        int[] palette = new int[1 << bits];
+        byte[] pixel = new byte[1];
+        for (int i = 0; i < palette.length; i++) {
+            pixel[0] = (byte) i;
+            palette[i] = cm.getRGB(pixel);
+        }
+        return palette;
+    }
+
+    /**
+     * @return the width of the image
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the image
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return false, rows can be read in any order
+     */
+    public boolean isSequential() {
+        return false;
+    }
+
+    /**
+     * Reads one row of the image as ARGB pixels
+     *
+     * @param y The row to read
+     * @param argb Receives the pixels, must hold at least <code>width</code>
+     * values
+     */
+    public void readRow(int y, int[] argb) {
+        switch (format) {
+            case INT_ARGB:
+                System.arraycopy(intData, offset + y * scanlineStride, argb, 0, width);
+                break;
+            case INT_RGB: {
+                int i = offset + y * scanlineStride;
+                for (int x = 0; x < width; x++) {
+                    argb[x] = 0xFF000000 | intData[i++];
+                }
+                break;
+            }
+            case BYTE_BGR: {
+                int i = offset + y * scanlineStride;
+                int r = bandOffsets[0], g = bandOffsets[1], b = bandOffsets[2];
+                for (int x = 0; x < width; x++, i += pixelStride) {
+                    argb[x] = 0xFF000000 | (byteData[i + r] & 0xFF) << 16
+                            | (byteData[i + g] & 0xFF) << 8 | (byteData[i + b] & 0xFF);
+                }
+                break;
+            }
+            case BYTE_ABGR: {
+                int i = offset + y * scanlineStride;
+                int r = bandOffsets[0], g = bandOffsets[1], b = bandOffsets[2], a = bandOffsets[3];
+                for (int x = 0; x < width; x++, i += pixelStride) {
+                    argb[x] = (byteData[i + a] & 0xFF) << 24 | (byteData[i + r] & 0xFF) << 16
+                            | (byteData[i + g] & 0xFF) << 8 | (byteData[i + b] & 0xFF);
+                }
+                break;
+            }
+            case BYTE_INDEXED: {
+                int i = offset + y * scanlineStride;
+                for (int x = 0; x < width; x++, i += pixelStride) {
+                    argb[x] = palette[byteData[i] & 0xFF];
+                }
+                break;
+            }
+            case BIT_INDEXED: {
+                int row = offset + y * scanlineStride;
+                int mask = (1 << pixelBits) - 1;
+                int bit = dataBitOffset;
+                for (int x = 0; x < width; x++, bit += pixelBits) {
+                    int shift = 8 - pixelBits - (bit & 7);
+                    argb[x] = palette[(byteData[row + (bit >> 3)] >> shift) & mask];
+                }
+                break;
+            }
+            default:
+                image.getRGB(0, y, width, 1, argb, 0, width);
+        }
+    }
+}
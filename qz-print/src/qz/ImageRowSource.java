@@ -0,0 +1,57 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+/**
+ * ImageRowSource supplies an image to <code>ImageWrapper</code> one row at a
+ * time as ARGB pixels, the same values <code>BufferedImage.getRGB</code>
+ * returns. Sources backed by a decoded image can be read in any order from
+ * several threads; sources that decode a stream as they go are sequential and
+ * must be read from one thread, top to bottom.
+ */
+public interface ImageRowSource {
+
+    /**
+     * @return the width of the image
+     */
+    public int getWidth();
+
+    /**
+     * @return the height of the image
+     */
+    public int getHeight();
+
+    /**
+     * Reads one row of the image as ARGB pixels. Sequential sources only
+     * accept the next row or the one read last.
+     *
+     * @param y The row to read
+     * @param argb Receives the pixels, must hold at least <code>width</code>
+     * values
+     */
+    public void readRow(int y, int[] argb);
+
+    /**
+     * @return true if rows must be read in order from a single thread
+     */
+    public boolean isSequential();
+}
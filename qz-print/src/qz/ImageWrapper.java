@@ -23,11 +23,12 @@
  */
 package qz;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadPoolExecutor;
 import qz.exception.InvalidRawImageException;
 
 /**
@@ -67,18 +68,49 @@ public class ImageWrapper {
      * discarded.
      */
     public static final int CHECK_ALPHA = 2;
+    /**
+     * No dithering, each pixel is converted with the quantization method on
+     * its own.
+     */
+    public static final int DITHER_NONE = 0;
+    /**
+     * Images with fewer pixels than this are converted on one thread.
+     */
+    public static final int PARALLEL_MIN_PIXELS = 512 * 1024;
+    /**
+     * ESC/P images are sent as 24 dot high stripes with <code>ESC *</code>
+     */
+    public static final int ESCP_BIT_IMAGE = 0;
+    /**
+     * ESC/POS images are sent row by row with <code>GS v 0</code>, which
+     * needs no transposing and no line feeds between stripes
+     */
+    public static final int ESCP_RASTER = 1;
+    /**
+     * Rows sent per <code>GS v 0</code> command, which keeps each command
+     * within the receive buffer of smaller printers
+     */
+    public static final int ESCP_RASTER_ROWS = 256;
     
     private int lumaThreshold = 127;
-    private boolean[] imageAsBooleanArray;        //Image representation as an array of boolean, with true values representing imageAsBooleanArray dots
-    private int[] imageAsIntArray;                //Image representation as an array of ints, with each bit representing a imageAsBooleanArray dot
+    private byte[] imageAsPackedRows;             //Image representation as rows of bits, each row padded to a whole byte
+    private int bytesPerRow;                      //Length of one packed row
     private final ByteArrayBuilder byteBuffer = new ByteArrayBuilder();
     private int alphaThreshold = 127;
     private BufferedImage bufferedImage;
+    private ImageRowSource rowSource;
     private final LanguageType languageType;
     private Charset charset = Charset.defaultCharset();
     private int imageQuantizationMethod = CHECK_LUMA;
+    private int ditheringMethod = DITHER_NONE;
+    private int zplEncoding = ZplGraphicEncoder.HEX;
+    private int escpMode = ESCP_BIT_IMAGE;
+    private int targetWidth = 0;
+    private int sourceDpi = 0;  // Resolution stored in the image file, 0 if unknown
+    private int printerDpi = 300;   // Resolution used for PCL, PWG and URF.  Irrelevant for all other languages.
     private int xPos = 0;   // X coordinate used for EPL2, CPCL.  Irrelevant for ZPLII, ESC/P, etc
     private int yPos = 0;   // Y coordinate used for EPL2, CPCL.  Irrelevant for ZPLII, ESC/P, etc
+    private ThreadPoolExecutor bandPool;
     private int dotDensity = 32;  // Generally 32 = Single (normal) 33 = Double (higher res) for ESCP.  Irrelevant for all other languages.
 
     /**
@@ -95,11 +127,22 @@ public class ImageWrapper {
         LogIt.log("Loading BufferedImage");
         LogIt.log(
                 "Dimensions: " + bufferedImage.getWidth() + "x" + bufferedImage.getHeight());
-        init();
-        
-        if (languageType.requiresImageWidthValidated()) {
-            validateImageWidth();
-        }
+    }
+
+    /**
+     * Creates a new <code>ImageWrapper</code> that reads the image row by row
+     * as it's converted, so a sequential source can decode an image that is
+     * too large to hold in memory. A sequential source can only be converted
+     * once.
+     *
+     * @param rowSource The image to convert for thermal printing
+     * @param languageType The image's language type
+     */
+    public ImageWrapper(ImageRowSource rowSource, LanguageType languageType) {
+        this.rowSource = rowSource;
+        this.languageType = languageType;
+        LogIt.log("Loading image rows");
+        LogIt.log("Dimensions: " + rowSource.getWidth() + "x" + rowSource.getHeight());
     }
 
     /**
@@ -168,6 +211,30 @@ public class ImageWrapper {
         this.imageQuantizationMethod = imageQuantizationMethod;
     }
 
+    /**
+     * Get the dithering method. <code>DITHER_NONE</code> converts each pixel
+     * with the quantization method; <code>ImageDitherer.FLOYD_STEINBERG</code>,
+     * <code>ImageDitherer.ATKINSON</code> and <code>ImageDitherer.BAYER</code>
+     * dither the image's gray levels instead, which keeps the shading of
+     * photos and soft-edged logos.
+     *
+     * @return the current dithering method
+     */
+    public int getDitheringMethod() {
+        return ditheringMethod;
+    }
+
+    /**
+     * Sets the dithering method. When dithering, transparent pixels count as
+     * white and <code>CHECK_ALPHA</code> dithers the opacity instead of the
+     * gray level. Unknown methods are treated as <code>DITHER_NONE</code>.
+     *
+     * @param ditheringMethod the dithering method to set
+     */
+    public void setDitheringMethod(int ditheringMethod) {
+        this.ditheringMethod = ImageDitherer.isSupported(ditheringMethod) ? ditheringMethod : DITHER_NONE;
+    }
+
     /**
      * Returns the transparency (alpha) threshold used for the CHECK_ALPHA
      * quantization method. Pixels that are more transparent than this will be
@@ -192,6 +259,116 @@ public class ImageWrapper {
         this.alphaThreshold = alphaThreshold;
     }
     
+    /**
+     * Get how ZPL graphic data is encoded: <code>ZplGraphicEncoder.HEX</code>
+     * (the default), <code>ASCII</code>, <code>Z64</code> or
+     * <code>AUTO</code> for the shortest of the compressed forms.
+     *
+     * @return the ZPL encoding
+     */
+    public int getZplEncoding() {
+        return zplEncoding;
+    }
+
+    /**
+     * Sets how ZPL graphic data is encoded. Compressed data is usually much
+     * shorter, which matters most over serial and slow networks.
+     * <code>Z64</code> needs a printer firmware that supports it.
+     *
+     * @param zplEncoding the ZPL encoding to set
+     */
+    public void setZplEncoding(int zplEncoding) {
+        this.zplEncoding = zplEncoding;
+    }
+
+    /**
+     * Get how ESC/P images are sent: <code>ESCP_BIT_IMAGE</code> (the
+     * default) or <code>ESCP_RASTER</code>
+     *
+     * @return the ESC/P image mode
+     */
+    public int getEscpMode() {
+        return escpMode;
+    }
+
+    /**
+     * Sets how ESC/P images are sent. <code>ESCP_RASTER</code> is faster but
+     * only understood by ESC/POS receipt printers.
+     *
+     * @param escpMode the ESC/P image mode to set
+     */
+    public void setEscpMode(int escpMode) {
+        this.escpMode = escpMode;
+    }
+
+    /**
+     * Get the width in dots the image is scaled to when it's converted
+     *
+     * @return the target width, or 0 to print the image at its own size
+     */
+    public int getTargetWidth() {
+        return targetWidth;
+    }
+
+    /**
+     * Sets the width in dots the image is scaled to when it's converted. The
+     * height is scaled by the same factor. Scaling is done row by row as the
+     * image is converted, so an oversized image is never copied.
+     *
+     * @param targetWidth the target width, or 0 to print the image at its own
+     * size
+     */
+    public void setTargetWidth(int targetWidth) {
+        this.targetWidth = Math.max(0, targetWidth);
+    }
+
+    /**
+     * Get the resolution stored in the image file
+     *
+     * @return the resolution in dots per inch, or 0 if unknown
+     */
+    public int getSourceDpi() {
+        return sourceDpi;
+    }
+
+    /**
+     * Sets the resolution stored in the image file, such as a PNG pHYs chunk
+     * or JFIF density. Used to scale the image to the printer's resolution.
+     *
+     * @param sourceDpi the resolution in dots per inch, or 0 if unknown
+     */
+    public void setSourceDpi(int sourceDpi) {
+        this.sourceDpi = Math.max(0, sourceDpi);
+    }
+
+    /**
+     * Get the printer resolution written to PCL, PWG and URF output
+     *
+     * @return the resolution in dots per inch
+     */
+    public int getPrinterDpi() {
+        return printerDpi;
+    }
+
+    /**
+     * Sets the printer resolution written to PCL, PWG and URF output. The
+     * image isn't scaled, see <code>setTargetWidth</code>.
+     *
+     * @param printerDpi the resolution in dots per inch
+     */
+    public void setPrinterDpi(int printerDpi) {
+        this.printerDpi = printerDpi;
+    }
+
+    /**
+     * Sets the pool used to convert large images in parallel bands
+     *
+     * @param bandPool the band pool, or null to convert on the calling thread
+     */
+    public void setBandPool(ThreadPoolExecutor bandPool) {
+        this.bandPool = bandPool;
+    }
+    
     public int getDotDensity() {
         return dotDensity;
     }
@@ -222,46 +399,93 @@ public class ImageWrapper {
      * setQuantizationMethod. Should an invalied value be set as the
      * quantization method, CHECK_BLACK will be used
      *
-     * @param rgbPixel the color of the pixel as defined in getRGB()
+     * @param argb the color of the pixel as defined in getRGB()
      * @return true if the pixel should be black, false otherwise
      */
-    private boolean isBlack(int rgbPixel) {
-        Color color = new Color(rgbPixel, true);
-
-        int r = color.getRed();
-        int g = color.getGreen();
-        int b = color.getBlue();
-        int a = color.getAlpha();
-        switch (getImageQuantizationMethod()) {
+    private boolean isBlack(int argb) {
+        int a = argb >>> 24;
+        switch (imageQuantizationMethod) {
             case CHECK_LUMA:
-                if (a < getLumaThreshold()) {
+                if (a < lumaThreshold) {
                     return false;     // assume pixels that are less opaque than the luma threshold should be considered to be white
                 }
+                int r = (argb >> 16) & 0xFF;
+                int g = (argb >> 8) & 0xFF;
+                int b = argb & 0xFF;
                 int luma = ((r * 299) + (g * 587) + (b * 114)) / 1000;      //luma formula
-                return luma < getLumaThreshold();                   //pixels that have less luma than the threshold are black
+                return luma < lumaThreshold;                   //pixels that have less luma than the threshold are black
             case CHECK_ALPHA:
-                return a > getAlphaThreshold();         //pixels that are more opaque than the threshold are black
+                return a > alphaThreshold;         //pixels that are more opaque than the threshold are black
             case CHECK_BLACK:
                 //only fully black pizels are black
             default:
-                return color.equals(Color.BLACK);              //The default
+                return argb == 0xFF000000;              //The default
 
         }
     }
 
     /**
-     * Sets ImageAsBooleanArray. boolean is used instead of int for memory
-     * considerations.
+     * Gets the gray level of a pixel for dithering, from 0 (black) to 255
+     * (white), as if it were drawn on white paper
      *
+     * @param argb the color of the pixel as defined in getRGB()
+     * @return the gray level
+     */
+    private int getGray(int argb) {
+        int a = argb >>> 24;
+        if (imageQuantizationMethod == CHECK_ALPHA) {
+            return 255 - a;
+        }
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        int luma = ((r * 299) + (g * 587) + (b * 114)) / 1000;
+        return 255 - ((255 - luma) * a + 127) / 255;
+    }
+
+    /**
+     * Converts the image to monochrome. Large images are split into bands
+     * of rows that are converted in parallel on the band pool, each band
+     * into its own part of the packed image.
      */
     private void generateBlackPixels() {
         LogIt.log("Converting image to monochrome");
-        BufferedImage bi = bufferedImage;
-        int h = bi.getHeight();
-        int w = bi.getWidth();
-        int[] rgbPixels = bi.getRGB(0, 0, w, h, null, 0, w);
-        int i = 0;
-        boolean[] pixels = new boolean[rgbPixels.length];
+        ImageRowSource source = rowSource != null ? rowSource : new ImageRowReader(bufferedImage);
+        if (targetWidth > 0 && targetWidth != source.getWidth()) {
+            source = new ScaledRowReader(source, getWidth(), getHeight());
+        }
+        final ImageRowSource reader = source;
+        int w = reader.getWidth();
+        int h = reader.getHeight();
+        bytesPerRow = (w + 7) / 8;
+        final byte[] packed = new byte[bytesPerRow * h];
+
+        // Error diffusion carries error from row to row, so it can't be split
+        boolean diffusing = ditheringMethod != DITHER_NONE && ditheringMethod != ImageDitherer.BAYER;
+        if (bandPool == null || diffusing || reader.isSequential() || (long) w * h < PARALLEL_MIN_PIXELS) {
+            packRows(reader, packed, 0, h);
+        } else {
+            int workers = bandPool.getMaximumPoolSize();
+            // Several bands per worker evens out the load; multiples of 24
+            // rows keep ESC/P stripes within one band
+            int bandRows = Math.max(24, (h / ((workers + 1) * 4) + 23) / 24 * 24);
+            ImageBands.run(bandPool, workers, h, bandRows, new ImageBands.Band() {
+                public void process(int from, int to) {
+                    packRows(reader, packed, from, to);
+                }
+            });
+        }
+        imageAsPackedRows = packed;
+    }
+
+    /**
+     * Converts rows <code>from</code> to <code>to</code> (exclusive) of the
+     * image to monochrome, packing eight pixels into each byte. Rows are
+     * padded with white to a whole number of bytes.
+     */
+    private void packRows(ImageRowSource reader, byte[] packed, int from, int to) {
+        int w = reader.getWidth();
+        int[] row = new int[w];
        /*
         * It makes most sense to have black pixels as 1's and white pixels
         * as zero's, however some printer manufacturers had this reversed
@@ -269,36 +493,31 @@ public class ImageWrapper {
         * uses 0's for black pixels.
         * See also: https://support.zebra.com/cpws/docs/eltron/gw_command.htm
         */
-        for (int rgbpixel : rgbPixels) {
-            pixels[i++] = languageType.requiresImageOutputInverted() ? !isBlack(rgbpixel) : 
-                    isBlack(rgbpixel);
+        int invert = languageType.requiresImageOutputInverted() ? 0xFF : 0;
+        ImageDitherer ditherer = null;
+        if (ditheringMethod != DITHER_NONE) {
+            ditherer = new ImageDitherer(ditheringMethod, w, from);
         }
-        setImageAsBooleanArray(pixels);
-    }
-
-    /**
-     * Converts the internal representation of the image into an array of bytes,
-     * suitable to be sent to a raw printer.
-     *
-     * @return The raw bytes that compose the image
-     */
-    private byte[] getBytes() {
-        LogIt.log("Generating byte array");
-        int[] ints = this.getImageAsIntArray();
-        byte[] bytes = new byte[ints.length];
-        for (int i = 0; i < ints.length; i++) {
-            bytes[i] = (byte) ints[i];
-        }
-        return bytes;
-    }
-
-    private void generateIntArray() {
-        LogIt.log("Packing bits");
-        imageAsIntArray = new int[(int) (imageAsBooleanArray.length / 8)];
-        // Convert every eight zero's to a full byte, in decimal
-        for (int i = 0; i < imageAsIntArray.length; i++) {
-            for (int k = 0; k < 8; k++) {
-                imageAsIntArray[i] += (imageAsBooleanArray[8 * i + k] ? 1 : 0) << 7 - k;
+        for (int y = from; y < to; y++) {
+            reader.readRow(y, row);
+            if (ditherer != null) {
+                for (int x = 0; x < w; x++) {
+                    row[x] = getGray(row[x]);
+                }
+                ditherer.ditherRow(row);
+            }
+            int i = y * bytesPerRow;
+            int bits = 0;
+            for (int x = 0; x < w; x++) {
+                bits = (bits << 1) | ((ditherer != null ? row[x] == 1 : isBlack(row[x])) ? 1 : 0);
+                if ((x & 7) == 7) {
+                    packed[i++] = (byte) (bits ^ invert);
+                    bits = 0;
+                }
+            }
+            if ((w & 7) != 0) {
+                // Padding bits are zero, i.e. white once inverted too
+                packed[i] = (byte) ((bits << (8 - (w & 7))) ^ invert);
             }
         }
     }
@@ -314,20 +533,35 @@ public class ImageWrapper {
      */
     public byte[] getImageCommand() throws InvalidRawImageException, UnsupportedEncodingException {
         this.getByteBuffer().clear();
-        
+        init();
+        appendImageCommand();
+        return this.getByteBuffer().getByteArray();
+    }
+
+    /**
+     * Appends the commands to print the converted image to the byte buffer
+     *
+     * @throws qz.exception.InvalidRawImageException
+     * @throws java.io.UnsupportedEncodingException
+     */
+    private void appendImageCommand() throws InvalidRawImageException, UnsupportedEncodingException {
         switch (languageType) {
             case ESCP:
             case ESCP2:
-                appendEpsonSlices(this.getByteBuffer());
+                if (escpMode == ESCP_RASTER) {
+                    appendEpsonRaster(this.getByteBuffer());
+                } else {
+                    appendEpsonSlices(this.getByteBuffer());
+                }
                 break;
             case ZPL:
             case ZPLII:
-                String zplHexAsString = ByteUtilities.getHexString(getImageAsIntArray());
-                int byteLen = zplHexAsString.length() / 2;
-                int perRow = byteLen / getHeight();
+                String zplData = ZplGraphicEncoder.encode(imageAsPackedRows, bytesPerRow, zplEncoding);
+                int byteLen = imageAsPackedRows.length;
+                int perRow = bytesPerRow;
                 StringBuilder zpl = new StringBuilder("^GFA,")
                         .append(byteLen).append(",").append(byteLen).append(",")
-                        .append(perRow).append(",").append(zplHexAsString);
+                        .append(perRow).append(",").append(zplData);
                 
                 this.getByteBuffer().append(zpl, charset);
                 break;
@@ -336,15 +570,25 @@ public class ImageWrapper {
                 StringBuilder epl = new StringBuilder("GW")
                         .append(getxPos()).append(",")
                         .append(getyPos()).append(",")
-                        .append(getWidth()/8).append(",")
+                        .append(bytesPerRow).append(",")
                         .append(getHeight()).append(",");
                 
-                this.getByteBuffer().append(epl, charset).append(getBytes());
+                this.getByteBuffer().append(epl, charset).append(imageAsPackedRows);
+                break;
+            case PCL:
+                this.getByteBuffer().append(PclRasterEncoder.encode(imageAsPackedRows, bytesPerRow,
+                        getWidth(), printerDpi, getxPos(), getyPos()));
+                break;
+            case PWG:
+                this.getByteBuffer().append(PwgRasterEncoder.encodePwg(imageAsPackedRows, bytesPerRow, getWidth(), printerDpi));
+                break;
+            case URF:
+                this.getByteBuffer().append(PwgRasterEncoder.encodeUrf(imageAsPackedRows, bytesPerRow, getWidth(), printerDpi));
                 break;
             case CPCL:
-                String cpclHexAsString = ByteUtilities.getHexString(getImageAsIntArray());
+                String cpclHexAsString = ByteUtilities.bytesToHex(imageAsPackedRows);
                 StringBuilder cpcl = new StringBuilder("EG ")
-                        .append((int)(getWidth()/8)).append(" ")
+                        .append(bytesPerRow).append(" ")
                         .append(getHeight()).append(" ")
                         .append(getxPos()).append(" ")
                         .append(getyPos()).append(" ")
@@ -355,62 +599,177 @@ public class ImageWrapper {
             default:
                 throw new InvalidRawImageException(charset.name() + " image conversion is not yet supported.");
         }
-        return this.getByteBuffer().getByteArray();
     }
 
     /**
-     * @return the width of the image
+     * Generates the commands to print an image through the printer's graphic
+     * memory. The first time an image is printed on a printer it is stored
+     * and recalled; after that it is only recalled. Only ZPL and EPL have
+     * stored graphics, other languages get the same commands as
+     * <code>getImageCommand()</code>.
+     *
+     * @param cache The record of what each printer has stored
+     * @param destination The printer the image is for
+     * @param jobId The job the image belongs to
+     * @return The commands to print the image as an array of bytes
+     * @throws qz.exception.InvalidRawImageException
+     * @throws java.io.UnsupportedEncodingException
      */
-    public int getWidth() {
-        return this.bufferedImage.getWidth();
+    public byte[] getImageCommand(GraphicCache cache, String destination, int jobId) throws InvalidRawImageException, UnsupportedEncodingException {
+        if (!languageType.equals(LanguageType.ZPL) && !languageType.equals(LanguageType.ZPLII)
+                && !languageType.equals(LanguageType.EPL) && !languageType.equals(LanguageType.EPL2)) {
+            return getImageCommand();
+        }
+        init();
+        GraphicCache.Recall recall = cache.lookup(destination, getImageHash(), jobId);
+        if (recall == null) {
+            LogIt.log("Graphic memory of " + destination + " is busy, sending image inline");
+            this.getByteBuffer().clear();
+            appendImageCommand();
+            return this.getByteBuffer().getByteArray();
+        }
+        LogIt.log((recall.isStore() ? "Storing" : "Recalling") + " image as " + recall.getName() + " on " + destination);
+
+        this.getByteBuffer().clear();
+        switch (languageType) {
+            case ZPL:
+            case ZPLII:
+                StringBuilder zpl = new StringBuilder();
+                if (recall.isStore()) {
+                    zpl.append("~DGR:").append(recall.getName()).append(".GRF,")
+                            .append(imageAsPackedRows.length).append(",").append(bytesPerRow).append(",")
+                            .append(ZplGraphicEncoder.encode(imageAsPackedRows, bytesPerRow, zplEncoding));
+                }
+                zpl.append("^XGR:").append(recall.getName()).append(".GRF,1,1");
+                this.getByteBuffer().append(zpl, charset);
+                break;
+            case EPL:
+            case EPL2:
+            default:
+                if (recall.isStore()) {
+                    byte[] pcx = getPcx();
+                    StringBuilder store = new StringBuilder("GK\"").append(recall.getName()).append("\"\n")
+                            .append("GM\"").append(recall.getName()).append("\"").append(pcx.length).append("\n");
+                    this.getByteBuffer().append(store, charset).append(pcx);
+                }
+                StringBuilder epl = new StringBuilder("GG")
+                        .append(getxPos()).append(",")
+                        .append(getyPos()).append(",\"")
+                        .append(recall.getName()).append("\"");
+                this.getByteBuffer().append(epl, charset);
+        }
+        return this.getByteBuffer().getByteArray();
     }
 
     /**
-     * @return the height of the image
+     * Hashes the converted image, so identical images on the same printer
+     * share one stored graphic
+     *
+     * @return The hash as a hex string
      */
-    public int getHeight() {
-        return this.bufferedImage.getHeight();
+    private String getImageHash() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(languageType.name().getBytes("US-ASCII"));
+            digest.update(new byte[] {(byte) (bytesPerRow >> 24), (byte) (bytesPerRow >> 16), (byte) (bytesPerRow >> 8), (byte) bytesPerRow});
+            digest.update(imageAsPackedRows);
+            return ByteUtilities.bytesToHex(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 
     /**
-     * @return the image as an array of booleans
+     * Encodes the converted image as a monochrome PCX file, the format EPL
+     * stores graphics in. EPL images are already converted with 0 for black,
+     * which matches the PCX palette.
+     *
+     * @return The PCX file
      */
-    private boolean[] getImageAsBooleanArray() {
-        return imageAsBooleanArray;
+    private byte[] getPcx() {
+        int h = getHeight();
+        // PCX lines are a whole number of 16 bit words
+        int bytesPerLine = bytesPerRow + (bytesPerRow & 1);
+        byte[] pcx = new byte[128 + h * bytesPerLine * 2];
+        pcx[0] = 0x0A;              // PCX
+        pcx[1] = 5;                 // Version 3.0
+        pcx[2] = 1;                 // Run length encoded
+        pcx[3] = 1;                 // Bits per pixel
+        int xMax = bytesPerRow * 8 - 1;
+        int yMax = h - 1;
+        pcx[8] = (byte) xMax;
+        pcx[9] = (byte) (xMax >> 8);
+        pcx[10] = (byte) yMax;
+        pcx[11] = (byte) (yMax >> 8);
+        pcx[19] = pcx[20] = pcx[21] = (byte) 0xFF;    // Palette entry 1 is white
+        pcx[65] = 1;                // Planes
+        pcx[66] = (byte) bytesPerLine;
+        pcx[67] = (byte) (bytesPerLine >> 8);
+        pcx[68] = 1;                // Monochrome palette
+
+        int out = 128;
+        for (int y = 0; y < h; y++) {
+            int row = y * bytesPerRow;
+            int x = 0;
+            while (x < bytesPerLine) {
+                byte value = x < bytesPerRow ? imageAsPackedRows[row + x] : (byte) 0xFF;
+                int run = 1;
+                while (run < 63 && x + run < bytesPerLine
+                        && (x + run < bytesPerRow ? imageAsPackedRows[row + x + run] : (byte) 0xFF) == value) {
+                    run++;
+                }
+                if (run > 1 || (value & 0xC0) == 0xC0) {
+                    pcx[out++] = (byte) (0xC0 | run);
+                }
+                pcx[out++] = value;
+                x += run;
+            }
+        }
+        byte[] trimmed = new byte[out];
+        System.arraycopy(pcx, 0, trimmed, 0, out);
+        return trimmed;
     }
 
     /**
-     * @param imageAsBooleanArray the imageAsBooleanArray to set
+     * @return the width of the image as printed, after any scaling
      */
-    private void setImageAsBooleanArray(boolean[] imageAsBooleanArray) {
-        this.imageAsBooleanArray = imageAsBooleanArray;
+    public int getWidth() {
+        if (targetWidth > 0) {
+            return targetWidth;
+        }
+        return getSourceWidth();
     }
 
     /**
-     * @return the imageAsIntArray
+     * @return the height of the image as printed, after any scaling
      */
-    private int[] getImageAsIntArray() {
-        return imageAsIntArray;
+    public int getHeight() {
+        if (targetWidth > 0) {
+            long h = Math.round((double) getSourceHeight() * targetWidth / getSourceWidth());
+            return (int) Math.max(1, h);
+        }
+        return getSourceHeight();
     }
 
-    /**
-     * @param imageAsIntArray the imageAsIntArray to set
-     */
-    private void setImageAsIntArray(int[] imageAsIntArray) {
-        this.imageAsIntArray = imageAsIntArray;
+    private int getSourceWidth() {
+        return rowSource != null ? rowSource.getWidth() : bufferedImage.getWidth();
+    }
+
+    private int getSourceHeight() {
+        return rowSource != null ? rowSource.getHeight() : bufferedImage.getHeight();
     }
 
     /**
      * Initializes the ImageWrapper. This populates the internal structures with
-     * the data created from the original image. It is normally called by the
-     * constructor, but if for any reason you change the image contents (for
-     * example, if you resize the image), it must be initialized again prior to
-     * calling getImageCommand()
+     * the data created from the original image. It is called by
+     * getImageCommand(), so changes to the image or the quantization settings
+     * made before then are picked up.
      */
-    private final void init() {
+    private void init() {
         LogIt.log("Initializing Image Fields");
         generateBlackPixels();
-        generateIntArray();
     }
 
     public Charset getCharset() {
@@ -449,124 +808,123 @@ public class ImageWrapper {
      * @param b 
      */
     private void appendEpsonSlices(ByteArrayBuilder builder) {
-//        BitSet dots = data.getDots();
-//        outputStream.write(PrinterCommands.INIT);
- 
- 
-        // So we have our bitmap data sitting in a bit array called "dots."
-        // This is one long array of 1s (black) and 0s (white) pixels arranged
-        // as if we had scanned the bitmap from top to bottom, left to right.
-        // The printer wants to see these arranged in bytes stacked three high.
-        // So, essentially, we need to read 24 bits for x = 0, generate those
-        // bytes, and send them to the printer, then keep increasing x. If our
-        // image is more than 24 dots high, we have to send a second bit image
-        // command to draw the next slice of 24 dots in the image.
- 
-        // Set the line spacing to 24 dots, the height of each "stripe" of the
-        // image that we're drawing. If we don't do this, and we need to
-        // draw the bitmap in multiple passes, then we'll end up with some
-        // whitespace between slices of the image since the default line
-        // height--how much the printer moves on a newline--is 30 dots.
-        builder.append(new byte[] {0x1B, 0x33, 24});
- 
-        // OK. So, starting from x = 0, read 24 bits down and send that data
-        // to the printer. The offset variable keeps track of our global 'y'
-        // position in the image. For example, if we were drawing a bitmap
-        // that is 48 pixels high, then this while loop will execute twice,
-        // once for each pass of 24 dots. On the first pass, the offset is
-        // 0, and on the second pass, the offset is 24. We keep making
-        // these 24-dot stripes until we've execute past the height of the
-        // bitmap.
-        int offset = 0;
- 
-        while (offset < getHeight()) {
-            // The third and fourth parameters to the bit image command are
-            // 'nL' and 'nH'. The 'L' and the 'H' refer to 'low' and 'high', respectively.
-            // All 'n' really is is the width of the image that we're about to draw.
-            // Since the width can be greater than 255 dots, the parameter has to
-            // be split across two bytes, which is why the documentation says the
-            // width is 'nL' + ('nH' * 256).
-            //builder.append(new byte[] {0x1B, 0x2A, 33, -128, 0});
-            byte nL = (byte)((int)(getWidth() % 256));
-            byte nH = (byte)((int)(getWidth()/256));
-            builder.append(new byte[] {0x1B, 0x2A, (byte)dotDensity, nL , nH});
- 
-            for (int x = 0; x < getWidth(); ++x) {
-                // Remember, 24 dots = 24 bits = 3 bytes.
-                // The 'k' variable keeps track of which of those
-                // three bytes that we're currently scribbling into.
-                for (int k = 0; k < 3; ++k) {
-                    byte slice = 0;
- 
-                    // A byte is 8 bits. The 'b' variable keeps track
-                    // of which bit in the byte we're recording.
-                    for (int b = 0; b < 8; ++b) {
-                        // Calculate the y position that we're currently
-                        // trying to draw. We take our offset, divide it
-                        // by 8 so we're talking about the y offset in
-                        // terms of bytes, add our current 'k' byte
-                        // offset to that, multiple by 8 to get it in terms
-                        // of bits again, and add our bit offset to it.
-                        int y = (((offset / 8) + k) * 8) + b;
- 
-                        // Calculate the location of the pixel we want in the bit array.
-                        // It'll be at (y * width) + x.
-                        int i = (y * getWidth()) + x;
- 
-                        // If the image (or this stripe of the image)
-                        // is shorter than 24 dots, pad with zero.
-                        boolean v = false;
-                        if (i < getImageAsBooleanArray().length) {
-                            v = getImageAsBooleanArray()[i];
+        // The printer wants the image as stripes 24 dots high, each column of
+        // a stripe sent as three bytes from top to bottom. The packed rows
+        // are turned into columns eight rows by eight columns at a time.
+        int w = getWidth();
+        int h = getHeight();
+        int stripes = (h + 23) / 24;
+        int stripeLength = 5 + w * 3 + 1;
+        byte[] out = new byte[3 + stripes * stripeLength + 3];
+
+        // Set the line spacing to 24 dots, the height of each stripe, so
+        // there are no gaps between them
+        int pos = 0;
+        out[pos++] = 0x1B;
+        out[pos++] = 0x33;
+        out[pos++] = 24;
+
+        for (int offset = 0; offset < h; offset += 24) {
+            // Bit image command, nL + nH * 256 is the width in dots
+            out[pos++] = 0x1B;
+            out[pos++] = 0x2A;
+            out[pos++] = (byte) dotDensity;
+            out[pos++] = (byte) (w % 256);
+            out[pos++] = (byte) (w / 256);
+
+            for (int k = 0; k < 3; k++) {
+                int top = offset + k * 8;
+                // Rows past the bottom of the image are blank, only the last
+                // stripe has fewer than eight
+                int rows = Math.min(8, h - top);
+                if (rows <= 0) {
+                    continue;
+                }
+                byte[] packed = imageAsPackedRows;
+                int row = bytesPerRow;
+                for (int xb = 0; xb < bytesPerRow; xb++) {
+                    // Eight rows of this byte column
+                    int i = top * row + xb;
+                    int hi;
+                    int lo;
+                    if (rows == 8) {
+                        hi = (packed[i] & 0xFF) << 24 | (packed[i + row] & 0xFF) << 16
+                                | (packed[i + row * 2] & 0xFF) << 8 | (packed[i + row * 3] & 0xFF);
+                        lo = (packed[i + row * 4] & 0xFF) << 24 | (packed[i + row * 5] & 0xFF) << 16
+                                | (packed[i + row * 6] & 0xFF) << 8 | (packed[i + row * 7] & 0xFF);
+                    } else {
+                        hi = 0;
+                        lo = 0;
+                        for (int b = 0; b < 4; b++) {
+                            hi = (hi << 8) | (b < rows ? packed[i + row * b] & 0xFF : 0);
+                            lo = (lo << 8) | (b + 4 < rows ? packed[i + row * (b + 4)] & 0xFF : 0);
                         }
- 
-                        // Finally, store our bit in the byte that we're currently
-                        // scribbling to. Our current 'b' is actually the exact
-                        // opposite of where we want it to be in the byte, so
-                        // subtract it from 7, shift our bit into place in a temp
-                        // byte, and OR it with the target byte to get it into there.
-                        slice |= (byte) ((v ? 1 : 0) << (7 - b));
                     }
- 
-                    // Phew! Write the damn byte to the buffer
-                    builder.append(new byte[] {slice});
+                    if ((hi | lo) == 0) {
+                        continue;
+                    }
+
+                    // Transpose the 8x8 block so each byte holds a column,
+                    // top row in the high bit (Hacker's Delight, 7-3)
+                    int t = (hi ^ (hi >>> 7)) & 0x00AA00AA;
+                    hi = hi ^ t ^ (t << 7);
+                    t = (lo ^ (lo >>> 7)) & 0x00AA00AA;
+                    lo = lo ^ t ^ (t << 7);
+                    t = (hi ^ (hi >>> 14)) & 0x0000CCCC;
+                    hi = hi ^ t ^ (t << 14);
+                    t = (lo ^ (lo >>> 14)) & 0x0000CCCC;
+                    lo = lo ^ t ^ (t << 14);
+                    t = (hi & 0xF0F0F0F0) | ((lo >>> 4) & 0x0F0F0F0F);
+                    lo = ((hi << 4) & 0xF0F0F0F0) | (lo & 0x0F0F0F0F);
+                    hi = t;
+
+                    int x = xb * 8;
+                    int columns = Math.min(8, w - x);
+                    for (int c = 0; c < columns; c++) {
+                        int column = c < 4 ? hi >>> (24 - c * 8) : lo >>> (56 - c * 8);
+                        out[pos + (x + c) * 3 + k] = (byte) column;
+                    }
                 }
             }
- 
-            // We're done with this 24-dot high pass. Render a newline
-            // to bump the print head down to the next line
-            // and keep on trucking.
-            offset += 24;
-            builder.append(new byte[] {10});
+            pos += w * 3;
+
+            // Line feed to move the print head down to the next stripe
+            out[pos++] = 10;
         }
- 
+
         // Restore the line spacing to the default of 30 dots.
-        builder.append(new byte[] {0x1B, 0x33, 30});
+        out[pos++] = 0x1B;
+        out[pos++] = 0x33;
+        out[pos++] = 30;
 
+        builder.append(out);
     }
-    
+
     /**
-     * Checks if the image width is a multiple of 8, and if it's not, 
-     * pads the image on the right side with blank pixels. <br />
-     * Due to limitations on the EPL2 language, image widths must be a multiple 
-     * of 8.
-     */
-    private void validateImageWidth()
-    {
-        BufferedImage oldBufferedImage = this.bufferedImage;
-        int height=oldBufferedImage.getHeight();
-        int width=oldBufferedImage.getWidth();
-        if(width%8!=0) 
-        {
-            int newWidth=(width/8+1)*8;
-            BufferedImage newBufferedImage=new BufferedImage(newWidth, height,
-                    BufferedImage.TYPE_INT_ARGB);
-            
-            Graphics2D g = newBufferedImage.createGraphics();
-            g.drawImage(oldBufferedImage, 0, 0, null);
-            g.dispose();
-            setBufferedImage(newBufferedImage);
-            init();
-       }
+     * Appends the image as ESC/POS raster bit images, which take the packed
+     * rows as they are. Tall images are split into several commands.
+     *
+     * @param builder The buffer to append to
+     */
+    private void appendEpsonRaster(ByteArrayBuilder builder) {
+        int h = getHeight();
+        int commands = (h + ESCP_RASTER_ROWS - 1) / ESCP_RASTER_ROWS;
+        byte[] out = new byte[commands * 8 + imageAsPackedRows.length];
+        int pos = 0;
+        for (int y = 0; y < h; y += ESCP_RASTER_ROWS) {
+            int rows = Math.min(ESCP_RASTER_ROWS, h - y);
+            // GS v 0 m xL xH yL yH, x in bytes and y in dots
+            out[pos++] = 0x1D;
+            out[pos++] = 0x76;
+            out[pos++] = 0x30;
+            out[pos++] = 0;
+            out[pos++] = (byte) (bytesPerRow % 256);
+            out[pos++] = (byte) (bytesPerRow / 256);
+            out[pos++] = (byte) (rows % 256);
+            out[pos++] = (byte) (rows / 256);
+            System.arraycopy(imageAsPackedRows, y * bytesPerRow, out, pos, rows * bytesPerRow);
+            pos += rows * bytesPerRow;
+        }
+        builder.append(out);
     }
 }
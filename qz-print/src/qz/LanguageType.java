@@ -28,7 +28,7 @@ package qz;
  */
 public enum LanguageType {
 
-    ZPLII, ZPL, EPL2, EPL, CPCL, ESCP, ESCP2, UNKNOWN;
+    ZPLII, ZPL, EPL2, EPL, CPCL, ESCP, ESCP2, PCL, PWG, URF, UNKNOWN;
 
     LanguageType() {
     }
@@ -57,6 +57,12 @@ public enum LanguageType {
             return ESCP2;
         } else if (s.equalsIgnoreCase("EPSON")) {
             return ESCP;
+        } else if (s.equalsIgnoreCase("PCL3") || s.equalsIgnoreCase("PCL5")) {
+            return PCL;
+        } else if (s.equalsIgnoreCase("PWG-RASTER") || s.equalsIgnoreCase("PWGRASTER")) {
+            return PWG;
+        } else if (s.equalsIgnoreCase("UNIRAST") || s.equalsIgnoreCase("APPLE-RASTER")) {
+            return URF;
         }
         return UNKNOWN;
     }
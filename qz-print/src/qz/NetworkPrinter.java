@@ -0,0 +1,135 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import javax.print.PrintException;
+import javax.print.PrintService;
+
+/**
+ * NetworkPrinter is a raw printer reached directly at a host and port. Data
+ * is written by the spooler's shared <code>NioHostTransport</code>, so any
+ * number of network printers can be fed from one thread. Jobs are handed to
+ * the transport without waiting for them to be written, and the printer
+ * reports itself as not ready while too much of its earlier data is still
+ * waiting, which holds new jobs back in the spooler.
+ */
+public class NetworkPrinter implements Printer {
+
+    public static final long DEFAULT_MAX_PENDING_BYTES = 1024 * 1024;
+
+    private final NioHostTransport transport;
+    private final String host;
+    private final int port;
+    private String name;
+    private String jobTitle;
+    private volatile long maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+
+    NetworkPrinter(NioHostTransport transport, String host, int port) {
+        this.transport = transport;
+        this.host = host;
+        this.port = port;
+        this.name = host + ":" + port;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void printRaw(ByteArrayBuilder data) throws PrintException {
+        try {
+            submitRaw(data, null).await();
+        } catch (IOException ex) {
+            throw new PrintException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PrintException(ex);
+        }
+    }
+
+    /**
+     * Queue raw data for the printer and return without waiting for it to be
+     * written
+     *
+     * @param data The raw data to send
+     * @param listener Told when the data has been written or has failed, on
+     * the transport thread
+     * @return The queued send
+     */
+    public NioHostTransport.Send submitRaw(ByteArrayBuilder data, NioHostTransport.SendListener listener) {
+        LogIt.log("Sending data to " + host + ":" + port);
+        return transport.send(data, host, port, listener);
+    }
+
+    public void printAlternate(ByteArrayBuilder data) throws PrintException {
+        LogIt.log(Level.WARNING, "Alternate printing is not supported for network printers, sending raw.");
+        printRaw(data);
+    }
+
+    public boolean ready() {
+        return getPendingBytes() < maxPendingBytes;
+    }
+
+    /**
+     * Get the number of bytes sent to this printer that haven't been written
+     * to the connection yet
+     *
+     * @return Bytes waiting to be written
+     */
+    public long getPendingBytes() {
+        return transport.getPendingBytes(host, port);
+    }
+
+    /**
+     * Set how many bytes may be waiting to be written before the printer
+     * stops accepting new jobs
+     *
+     * @param maxPendingBytes The limit in bytes
+     */
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    public void setPrintService(PrintService ps) {
+    }
+
+    public PrintService getPrintService() {
+        return null;
+    }
+
+    public String getType() {
+        return "RAW";
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setJobTitle(String jobTitle) {
+        this.jobTitle = jobTitle;
+    }
+
+    public boolean setCopies(int copies) {
+        return false;
+    }
+}
@@ -0,0 +1,441 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * NioHostTransport sends raw data to many network printers from a single
+ * thread. Each host and port gets one non-blocking connection which stays
+ * open between jobs until it has been idle for the idle timeout. Data is
+ * written with gathering writes straight from the job's prepared buffers, and
+ * the number of bytes still waiting to be written is tracked per connection
+ * so callers can hold back new jobs for printers that aren't keeping up.
+ */
+public class NioHostTransport implements Runnable {
+
+    public static final int DEFAULT_IDLE_TIMEOUT = 10000;
+    public static final int CONNECT_TIMEOUT = 10000;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Send> newSends = new ConcurrentLinkedQueue<Send>();
+    private final HashMap<String, Connection> connections = new HashMap<String, Connection>();
+    private final HashMap<String, Long> pendingBytes = new HashMap<String, Long>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile boolean running = true;
+
+    NioHostTransport() throws IOException {
+        selector = Selector.open();
+        Thread loop = new Thread(this, "qz-nio-transport");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * Queue data to be sent to a remote host. The returned <code>Send</code>
+     * can be waited on for the data to be written.
+     *
+     * @param data The data to send
+     * @param host The target host
+     * @param port The port on the target host
+     * @return The queued send
+     */
+    public Send send(ByteArrayBuilder data, String host, int port) {
+        return send(data, host, port, null);
+    }
+
+    /**
+     * Queue data to be sent to a remote host, without waiting for it
+     *
+     * @param data The data to send
+     * @param host The target host
+     * @param port The port on the target host
+     * @param listener Told when the send completes, on the transport thread,
+     * or null
+     * @return The queued send
+     */
+    public Send send(ByteArrayBuilder data, String host, int port, SendListener listener) {
+        Send send = new Send(host, port, data.getByteBuffers(), data.getLength(), listener);
+        synchronized (newSends) {
+            if (running) {
+                addPending(send.key, send.length);
+                newSends.add(send);
+                selector.wakeup();
+                return send;
+            }
+        }
+        // The transport has been closed, nothing will pick the send up
+        send.complete(new ClosedChannelException());
+        return send;
+    }
+
+    /**
+     * Get the number of bytes queued for a host that haven't been written
+     * yet
+     *
+     * @param host The target host
+     * @param port The port on the target host
+     * @return Bytes waiting to be written
+     */
+    public long getPendingBytes(String host, int port) {
+        synchronized (pendingBytes) {
+            Long pending = pendingBytes.get(host + ":" + port);
+            return pending == null ? 0 : pending.longValue();
+        }
+    }
+
+    /**
+     * Set how long an unused connection stays open
+     *
+     * @param idleTimeout Milliseconds, or 0 to close a connection as soon as
+     * it has nothing left to send
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+        selector.wakeup();
+    }
+
+    /**
+     * Close all connections and stop the transport thread. Sends that haven't
+     * been written fail.
+     */
+    public void close() {
+        synchronized (newSends) {
+            running = false;
+        }
+        selector.wakeup();
+    }
+
+    private void addPending(String key, long bytes) {
+        synchronized (pendingBytes) {
+            Long pending = pendingBytes.get(key);
+            long total = (pending == null ? 0 : pending.longValue()) + bytes;
+            if (total <= 0) {
+                pendingBytes.remove(key);
+            } else {
+                pendingBytes.put(key, Long.valueOf(total));
+            }
+        }
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                selector.select(Math.max(100, idleTimeout / 2));
+            } catch (IOException ex) {
+                LogIt.log(Level.SEVERE, "Network transport select failed.", ex);
+                continue;
+            }
+
+            Send send;
+            while ((send = newSends.poll()) != null) {
+                queueSend(send);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isConnectable()) {
+                        connection.channel.finishConnect();
+                        connection.connected = true;
+                        LogIt.log("Opened connection to " + connection.key);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                    if (key.isValid()) {
+                        connection.updateInterest();
+                    }
+                } catch (IOException ex) {
+                    connection.fail(ex);
+                }
+            }
+
+            closeIdle();
+        }
+
+        for (Connection connection : connections.values().toArray(new Connection[0])) {
+            connection.fail(new ClosedChannelException());
+        }
+        Send send;
+        while ((send = newSends.poll()) != null) {
+            addPending(send.key, -send.length);
+            send.complete(new ClosedChannelException());
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            LogIt.log(Level.WARNING, "Could not close network transport.", ex);
+        }
+    }
+
+    /**
+     * Add a send to its host's connection, opening one if needed. Called on
+     * the transport thread.
+     */
+    private void queueSend(Send send) {
+        Connection connection = connections.get(send.key);
+        if (connection == null) {
+            try {
+                connection = new Connection(send.key, send.host, send.port);
+            } catch (IOException ex) {
+                addPending(send.key, -send.length);
+                send.complete(ex);
+                return;
+            }
+            connections.put(send.key, connection);
+        }
+        connection.sends.add(send);
+        connection.updateInterest();
+    }
+
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        LinkedList<Connection> timedOut = new LinkedList<Connection>();
+        Iterator<Connection> iterator = connections.values().iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (!connection.connected) {
+                if (now - connection.lastUsed >= CONNECT_TIMEOUT) {
+                    timedOut.add(connection);
+                }
+            } else if (connection.sends.isEmpty() && now - connection.lastUsed >= idleTimeout) {
+                iterator.remove();
+                connection.close();
+            }
+        }
+        for (Connection connection : timedOut) {
+            connection.fail(new SocketTimeoutException("Timed out connecting to " + connection.key));
+        }
+    }
+
+    /**
+     * Told when a send has been written or has failed. Called on the
+     * transport thread, so it must not block.
+     */
+    public interface SendListener {
+
+        /**
+         * @param send The completed send
+         * @param error Why the data could not be sent, or null if it was
+         * written
+         */
+        public void sendCompleted(Send send, IOException error);
+    }
+
+    /**
+     * Data queued to be written to a host
+     */
+    public static class Send {
+
+        final String host;
+        final int port;
+        final String key;
+        final ByteBuffer[] buffers;
+        final long length;
+        private final SendListener listener;
+        boolean started = false;
+        boolean retried = false;
+        private boolean done = false;
+        private IOException error;
+
+        Send(String host, int port, ByteBuffer[] buffers, long length, SendListener listener) {
+            this.host = host;
+            this.port = port;
+            this.key = host + ":" + port;
+            this.buffers = buffers;
+            this.length = length;
+            this.listener = listener;
+        }
+
+        boolean isWritten() {
+            return buffers.length == 0 || !buffers[buffers.length - 1].hasRemaining();
+        }
+
+        void complete(IOException error) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                this.error = error;
+                this.done = true;
+                notifyAll();
+            }
+            if (listener != null) {
+                listener.sendCompleted(this, error);
+            }
+        }
+
+        /**
+         * Wait until the data has been written to the connection
+         *
+         * @throws IOException If the data could not be sent
+         * @throws InterruptedException
+         */
+        public synchronized void await() throws IOException, InterruptedException {
+            while (!done) {
+                wait();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * One non-blocking connection to a host. Only used on the transport
+     * thread.
+     */
+    private class Connection {
+
+        final String key;
+        final SocketChannel channel;
+        final SelectionKey selectionKey;
+        final LinkedList<Send> sends = new LinkedList<Send>();
+        long lastUsed = System.currentTimeMillis();
+        boolean connected = false;
+
+        Connection(String key, String host, int port) throws IOException {
+            this.key = key;
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                channel.connect(new InetSocketAddress(host, port));
+                selectionKey = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        void updateInterest() {
+            if (!selectionKey.isValid()) {
+                return;
+            }
+            if (channel.isConnectionPending()) {
+                selectionKey.interestOps(SelectionKey.OP_CONNECT);
+            } else if (sends.isEmpty()) {
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            } else {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void write() throws IOException {
+            while (!sends.isEmpty()) {
+                Send send = sends.getFirst();
+                long written = channel.write(send.buffers);
+                if (written > 0) {
+                    send.started = true;
+                    addPending(key, -written);
+                    lastUsed = System.currentTimeMillis();
+                }
+                if (!send.isWritten()) {
+                    // Socket buffer is full, wait to be writable again
+                    return;
+                }
+                sends.removeFirst();
+                send.complete(null);
+            }
+        }
+
+        /**
+         * Raw printers don't normally send anything back unless asked, so
+         * anything they do send is discarded. End of stream means the host
+         * closed the connection.
+         */
+        void read() throws IOException {
+            readBuffer.clear();
+            if (channel.read(readBuffer) < 0) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        /**
+         * Close the connection after an error. If the connection had been
+         * open, sends that haven't started are retried once on a new
+         * connection, since a connection that sat idle may simply have been
+         * dropped by the host.
+         */
+        void fail(IOException ex) {
+            connections.remove(key);
+            close();
+            if (sends.isEmpty()) {
+                LogIt.log("Connection to " + key + " was closed by the host.");
+                return;
+            }
+            LinkedList<Send> retry = new LinkedList<Send>();
+            for (Send send : sends) {
+                if (running && connected && !send.started && !send.retried) {
+                    send.retried = true;
+                    retry.add(send);
+                } else {
+                    long remaining = 0;
+                    for (ByteBuffer buffer : send.buffers) {
+                        remaining += buffer.remaining();
+                    }
+                    addPending(key, -remaining);
+                    send.complete(ex);
+                }
+            }
+            sends.clear();
+            if (!retry.isEmpty()) {
+                LogIt.log(Level.WARNING, "Connection to " + key + " was lost, reconnecting.");
+                for (Send send : retry) {
+                    queueSend(send);
+                }
+            } else {
+                LogIt.log(Level.WARNING, "Connection to " + key + " failed.", ex);
+            }
+        }
+
+        void close() {
+            selectionKey.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LogIt.log(Level.WARNING, "Could not close connection to " + key + ".", ex);
+            }
+        }
+    }
+}
@@ -79,4 +79,7 @@ public class PSPrinter implements Printer {
         this.jobTitle = jobTitle;
     }
 
+    public boolean setCopies(int copies) {
+        return false;
+    }
 }
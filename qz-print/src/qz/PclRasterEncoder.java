@@ -0,0 +1,175 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * PclRasterEncoder encodes a packed monochrome image as PCL raster graphics,
+ * which PCL 3 and PCL 5 page printers print without a driver. Each row is
+ * sent with whichever is shorter of TIFF PackBits (mode 2) and delta row
+ * (mode 3) compression, which only sends the bytes that differ from the row
+ * before. The image is placed at the cursor position given; the commands
+ * that reset the printer and eject the page are left to the job.
+ */
+public class PclRasterEncoder {
+
+    private static final int MODE_PACKBITS = 2;
+    private static final int MODE_DELTA_ROW = 3;
+
+    /**
+     * Encodes a packed image, 1 for black
+     *
+     * @param packed The image, <code>bytesPerRow</code> bytes per row
+     * @param bytesPerRow The length of one row
+     * @param width The width of the image in dots
+     * @param dpi The raster resolution, e.g. 300
+     * @param x The horizontal position in dots
+     * @param y The vertical position in dots
+     * @return The PCL commands
+     */
+    public static byte[] encode(byte[] packed, int bytesPerRow, int width, int dpi, int x, int y) {
+        int height = bytesPerRow == 0 ? 0 : packed.length / bytesPerRow;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(packed.length / 4 + 64);
+        write(out, "\u001B*t" + dpi + "R");
+        write(out, "\u001B*p" + x + "x" + y + "Y");
+        write(out, "\u001B*r" + width + "S");
+        write(out, "\u001B*r1A");
+
+        byte[] seed = new byte[bytesPerRow];
+        byte[] packBits = new byte[bytesPerRow + (bytesPerRow + 127) / 128];
+        // At worst one command and one offset byte per eight bytes
+        byte[] delta = new byte[bytesPerRow * 2 + 8];
+        int mode = -1;
+        for (int row = 0; row < height; row++) {
+            int offset = row * bytesPerRow;
+            // Trailing white bytes don't need to be sent in mode 2
+            int end = bytesPerRow;
+            while (end > 0 && packed[offset + end - 1] == 0) {
+                end--;
+            }
+            int packBitsLength = packBits(packed, offset, end, packBits);
+            int deltaLength = deltaRow(packed, offset, seed, delta);
+
+            int rowMode = deltaLength < packBitsLength ? MODE_DELTA_ROW : MODE_PACKBITS;
+            if (rowMode != mode) {
+                write(out, "\u001B*b" + rowMode + "M");
+                mode = rowMode;
+            }
+            int length = rowMode == MODE_DELTA_ROW ? deltaLength : packBitsLength;
+            write(out, "\u001B*b" + length + "W");
+            out.write(rowMode == MODE_DELTA_ROW ? delta : packBits, 0, length);
+
+            // The seed row is the last row printed, whatever its mode
+            System.arraycopy(packed, offset, seed, 0, bytesPerRow);
+        }
+
+        write(out, "\u001B*rB");
+        return out.toByteArray();
+    }
+
+    /**
+     * TIFF PackBits: a count n of 0 to 127 is followed by n + 1 literal
+     * bytes, -1 to -127 by one byte repeated 1 - n times
+     *
+     * @return the encoded length
+     */
+    static int packBits(byte[] data, int offset, int length, byte[] out) {
+        int o = 0;
+        int i = 0;
+        while (i < length) {
+            int run = 1;
+            while (i + run < length && run < 128 && data[offset + i + run] == data[offset + i]) {
+                run++;
+            }
+            if (run > 1) {
+                out[o++] = (byte) (1 - run);
+                out[o++] = data[offset + i];
+                i += run;
+                continue;
+            }
+            // Literals last until a run of at least three starts
+            int start = i;
+            while (i < length && i - start < 128) {
+                if (i + 2 < length && data[offset + i] == data[offset + i + 1]
+                        && data[offset + i] == data[offset + i + 2]) {
+                    break;
+                }
+                i++;
+            }
+            out[o++] = (byte) (i - start - 1);
+            System.arraycopy(data, offset + start, out, o, i - start);
+            o += i - start;
+        }
+        return o;
+    }
+
+    /**
+     * PCL delta row: each change is a command byte holding the number of
+     * bytes replaced (1 to 8, less one) in its top three bits and the offset
+     * from the end of the previous change in the low five, 31 meaning more
+     * offset bytes follow. Bytes that match the seed row are skipped.
+     *
+     * @return the encoded length
+     */
+    static int deltaRow(byte[] data, int offset, byte[] seed, byte[] out) {
+        int o = 0;
+        int last = 0;
+        int i = 0;
+        int n = seed.length;
+        while (i < n) {
+            if (data[offset + i] == seed[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < n && i - start < 8 && data[offset + i] != seed[i]) {
+                i++;
+            }
+            int count = i - start;
+            int skip = start - last;
+            out[o++] = (byte) ((count - 1) << 5 | Math.min(skip, 31));
+            if (skip >= 31) {
+                skip -= 31;
+                while (skip >= 255) {
+                    out[o++] = (byte) 255;
+                    skip -= 255;
+                }
+                out[o++] = (byte) skip;
+            }
+            System.arraycopy(data, offset + start, out, o, count);
+            o += count;
+            last = i;
+        }
+        return o;
+    }
+
+    private static void write(ByteArrayOutputStream out, String command) {
+        try {
+            byte[] bytes = command.getBytes("US-ASCII");
+            out.write(bytes, 0, bytes.length);
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
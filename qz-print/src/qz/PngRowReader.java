@@ -0,0 +1,473 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * PngRowReader decodes a PNG one scanline at a time, keeping only the
+ * current and previous row in memory, so a long continuous-roll image can be
+ * converted without decoding all of it first. It handles non-interlaced
+ * images of every color type and bit depth, including <code>tRNS</code>
+ * transparency; use <code>open</code> to check whether an image qualifies.
+ * Rows must be read in order.
+ */
+public class PngRowReader implements ImageRowSource {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int GRAY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GRAY_ALPHA = 4;
+    private static final int RGB_ALPHA = 6;
+
+    /**
+     * 8 and 16 bit gray PNGs are read by ImageIO in a linear gray color
+     * space, which <code>getRGB</code> brightens on the way to sRGB. The same
+     * mapping is used here so large and small images convert alike.
+     */
+    private static final int[] LINEAR_GRAY = new int[256];
+
+    static {
+        ColorModel cm = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY).getColorModel();
+        for (int i = 0; i < 256; i++) {
+            LINEAR_GRAY[i] = cm.getRGB(i) & 0xFF;
+        }
+    }
+
+    private final DataInputStream in;
+    private int width;
+    private int height;
+    private int bitDepth;
+    private int colorType;
+    private int[] palette;
+    private int transparentGray = -1;
+    private int transparentRed = -1;
+    private int transparentGreen = -1;
+    private int transparentBlue = -1;
+    private int dpi = 0;
+
+    private InputStream pixels;
+    private int bytesPerPixel;
+    private byte[] current;
+    private byte[] previous;
+    private int[] lastRow;
+    private int nextRow = 0;
+
+    private PngRowReader(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * Reads the header of a PNG up to its image data
+     *
+     * @param in The PNG file
+     * @return A reader positioned at the first row, or null if the data isn't
+     * a PNG or is interlaced
+     * @throws IOException If the PNG is damaged
+     */
+    public static PngRowReader open(InputStream in) throws IOException {
+        PngRowReader reader = new PngRowReader(in);
+        return reader.readHeader() ? reader : null;
+    }
+
+    private boolean readHeader() throws IOException {
+        byte[] signature = new byte[SIGNATURE.length];
+        try {
+            in.readFully(signature);
+        } catch (EOFException ex) {
+            return false;
+        }
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (signature[i] != SIGNATURE[i]) {
+                return false;
+            }
+        }
+
+        int length;
+        while (true) {
+            length = in.readInt();
+            String type = readType();
+            if (type.equals("IDAT")) {
+                break;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            in.readInt();   // CRC
+
+            if (type.equals("IHDR")) {
+                width = getInt(data, 0);
+                height = getInt(data, 4);
+                bitDepth = data[8] & 0xFF;
+                colorType = data[9] & 0xFF;
+                if (data[12] != 0) {
+                    // Interlaced rows arrive in seven passes
+                    return false;
+                }
+            } else if (type.equals("PLTE")) {
+                palette = new int[256];
+                for (int i = 0; i < length / 3; i++) {
+                    palette[i] = 0xFF000000 | (data[i * 3] & 0xFF) << 16
+                            | (data[i * 3 + 1] & 0xFF) << 8 | (data[i * 3 + 2] & 0xFF);
+                }
+            } else if (type.equals("tRNS")) {
+                if (colorType == PALETTE && palette != null) {
+                    for (int i = 0; i < length && i < 256; i++) {
+                        palette[i] = (palette[i] & 0x00FFFFFF) | (data[i] & 0xFF) << 24;
+                    }
+                } else if (colorType == GRAY && length >= 2) {
+                    transparentGray = getShort(data, 0);
+                } else if (colorType == RGB && length >= 6) {
+                    transparentRed = getShort(data, 0);
+                    transparentGreen = getShort(data, 2);
+                    transparentBlue = getShort(data, 4);
+                }
+            } else if (type.equals("pHYs")) {
+                // Pixels per meter, only when the unit is the meter
+                if (length >= 9 && data[8] == 1) {
+                    dpi = (int) Math.round((getInt(data, 0) & 0xFFFFFFFFL) * 0.0254);
+                }
+            } else if (type.equals("IEND")) {
+                throw new IOException("PNG has no image data");
+            }
+        }
+
+        if (width <= 0 || height <= 0 || (colorType == PALETTE && palette == null)) {
+            throw new IOException("Invalid PNG header");
+        }
+        int channels;
+        switch (colorType) {
+            case GRAY:
+            case PALETTE:
+                channels = 1;
+                break;
+            case GRAY_ALPHA:
+                channels = 2;
+                break;
+            case RGB:
+                channels = 3;
+                break;
+            case RGB_ALPHA:
+                channels = 4;
+                break;
+            default:
+                throw new IOException("Unknown PNG color type " + colorType);
+        }
+        bytesPerPixel = Math.max(1, channels * bitDepth / 8);
+        int rowBytes = (int) (((long) width * channels * bitDepth + 7) / 8);
+        current = new byte[rowBytes];
+        previous = new byte[rowBytes];
+        lastRow = new int[width];
+        pixels = new InflaterInputStream(new ImageDataStream(length));
+        return true;
+    }
+
+    private String readType() throws IOException {
+        byte[] type = new byte[4];
+        in.readFully(type);
+        return new String(type, "US-ASCII");
+    }
+
+    private static int getInt(byte[] data, int i) {
+        return (data[i] & 0xFF) << 24 | (data[i + 1] & 0xFF) << 16 | (data[i + 2] & 0xFF) << 8 | (data[i + 3] & 0xFF);
+    }
+
+    private static int getShort(byte[] data, int i) {
+        return (data[i] & 0xFF) << 8 | (data[i + 1] & 0xFF);
+    }
+
+    /**
+     * @return the width of the image
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the image
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the horizontal resolution from the pHYs chunk in dots per
+     * inch, or 0 if the PNG doesn't give one
+     */
+    public int getDpi() {
+        return dpi;
+    }
+
+    /**
+     * @return true, the PNG is decoded as it's read
+     */
+    public boolean isSequential() {
+        return true;
+    }
+
+    /**
+     * Reads the next row, or the last row again
+     *
+     * @param y The row to read
+     * @param argb Receives the pixels, must hold at least <code>width</code>
+     * values
+     * @throws IllegalStateException If the row is out of order
+     * @throws IllegalArgumentException If the PNG data is damaged
+     */
+    public void readRow(int y, int[] argb) {
+        if (y == nextRow - 1) {
+            System.arraycopy(lastRow, 0, argb, 0, width);
+            return;
+        }
+        if (y != nextRow || y >= height) {
+            throw new IllegalStateException("PNG rows must be read in order, expected row " + nextRow + " but got " + y);
+        }
+        try {
+            int filter = pixels.read();
+            if (filter < 0) {
+                throw new EOFException();
+            }
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+            readFully(current);
+            unfilter(filter);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Could not decode PNG row " + y + ": " + ex.getMessage());
+        }
+        toArgb(argb);
+        System.arraycopy(argb, 0, lastRow, 0, width);
+        nextRow++;
+        if (nextRow == height) {
+            close();
+        }
+    }
+
+    private void readFully(byte[] row) throws IOException {
+        int read = 0;
+        while (read < row.length) {
+            int n = pixels.read(row, read, row.length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Reverses the scanline filter, see the PNG specification section 9
+     */
+    private void unfilter(int filter) throws IOException {
+        byte[] row = current;
+        byte[] prior = nextRow == 0 ? null : previous;
+        int bpp = bytesPerPixel;
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = bpp; i < row.length; i++) {
+                    row[i] += row[i - bpp];
+                }
+                break;
+            case 2:
+                if (prior != null) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] += prior[i];
+                    }
+                }
+                break;
+            case 3:
+                for (int i = 0; i < row.length; i++) {
+                    int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int up = prior != null ? prior[i] & 0xFF : 0;
+                    row[i] += (left + up) >> 1;
+                }
+                break;
+            case 4:
+                for (int i = 0; i < row.length; i++) {
+                    int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    int up = prior != null ? prior[i] & 0xFF : 0;
+                    int upLeft = i >= bpp && prior != null ? prior[i - bpp] & 0xFF : 0;
+                    int p = left + up - upLeft;
+                    int pa = Math.abs(p - left);
+                    int pb = Math.abs(p - up);
+                    int pc = Math.abs(p - upLeft);
+                    row[i] += (pa <= pb && pa <= pc) ? left : (pb <= pc ? up : upLeft);
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter " + filter);
+        }
+    }
+
+    /**
+     * Converts the unfiltered scanline to ARGB. 16 bit samples are cut to
+     * their high byte, as ImageIO does when converting to RGB.
+     */
+    private void toArgb(int[] argb) {
+        byte[] row = current;
+        switch (colorType) {
+            case GRAY:
+                for (int x = 0; x < width; x++) {
+                    int sample = getSample(row, x);
+                    int gray = scale(sample);
+                    int alpha = sample == transparentGray ? 0 : 0xFF;
+                    argb[x] = alpha << 24 | gray << 16 | gray << 8 | gray;
+                }
+                break;
+            case PALETTE:
+                for (int x = 0; x < width; x++) {
+                    argb[x] = palette[getSample(row, x)];
+                }
+                break;
+            case GRAY_ALPHA:
+                for (int x = 0; x < width; x++) {
+                    int gray, alpha;
+                    if (bitDepth == 16) {
+                        gray = LINEAR_GRAY[row[x * 4] & 0xFF];
+                        alpha = row[x * 4 + 2] & 0xFF;
+                    } else {
+                        gray = LINEAR_GRAY[row[x * 2] & 0xFF];
+                        alpha = row[x * 2 + 1] & 0xFF;
+                    }
+                    argb[x] = alpha << 24 | gray << 16 | gray << 8 | gray;
+                }
+                break;
+            case RGB:
+                for (int x = 0; x < width; x++) {
+                    int r, g, b, alpha;
+                    if (bitDepth == 16) {
+                        int i = x * 6;
+                        alpha = getShort(row, i) == transparentRed && getShort(row, i + 2) == transparentGreen
+                                && getShort(row, i + 4) == transparentBlue ? 0 : 0xFF;
+                        r = row[i] & 0xFF;
+                        g = row[i + 2] & 0xFF;
+                        b = row[i + 4] & 0xFF;
+                    } else {
+                        int i = x * 3;
+                        r = row[i] & 0xFF;
+                        g = row[i + 1] & 0xFF;
+                        b = row[i + 2] & 0xFF;
+                        alpha = r == transparentRed && g == transparentGreen && b == transparentBlue ? 0 : 0xFF;
+                    }
+                    argb[x] = alpha << 24 | r << 16 | g << 8 | b;
+                }
+                break;
+            default:
+                for (int x = 0; x < width; x++) {
+                    int i = bitDepth == 16 ? x * 8 : x * 4;
+                    int step = bitDepth == 16 ? 2 : 1;
+                    argb[x] = (row[i + step * 3] & 0xFF) << 24 | (row[i] & 0xFF) << 16
+                            | (row[i + step] & 0xFF) << 8 | (row[i + step * 2] & 0xFF);
+                }
+        }
+    }
+
+    /**
+     * @return the gray or palette sample for column <code>x</code> at its
+     * full bit depth
+     */
+    private int getSample(byte[] row, int x) {
+        switch (bitDepth) {
+            case 16:
+                return getShort(row, x * 2);
+            case 8:
+                return row[x] & 0xFF;
+            default:
+                int bit = x * bitDepth;
+                int shift = 8 - bitDepth - (bit & 7);
+                return (row[bit >> 3] >> shift) & ((1 << bitDepth) - 1);
+        }
+    }
+
+    /**
+     * @return a gray sample scaled to 0 to 255
+     */
+    private int scale(int sample) {
+        switch (bitDepth) {
+            case 16:
+                return LINEAR_GRAY[sample >> 8];
+            case 8:
+                return LINEAR_GRAY[sample];
+            default:
+                return sample * 255 / ((1 << bitDepth) - 1);
+        }
+    }
+
+    /**
+     * Stops decoding and releases the inflater
+     */
+    public void close() {
+        try {
+            pixels.close();
+        } catch (IOException ex) {
+            // Nothing is left to read
+        }
+    }
+
+    /**
+     * The concatenated data of consecutive IDAT chunks, starting inside the
+     * first one
+     */
+    private class ImageDataStream extends InputStream {
+
+        private int remaining;
+        private boolean done = false;
+
+        ImageDataStream(int firstLength) {
+            remaining = firstLength;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (remaining == 0) {
+                if (done) {
+                    return -1;
+                }
+                in.readInt();   // CRC of the previous chunk
+                int length = in.readInt();
+                if (!readType().equals("IDAT")) {
+                    done = true;
+                    return -1;
+                }
+                remaining = length;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.util.logging.Level;
 import qz.json.JSONArray;
+import qz.json.JSONException;
 
 /**
  * The PrintApplet is the main component of the Applet. It provides function
@@ -74,6 +75,9 @@ public class PrintApplet extends Applet {
     @Override
     public void stop() {
         spooler.closePort("", false);
+        spooler.closeHostConnections();
+        spooler.getPrinterRegistry().stop();
+        spooler.getPreparerPool().shutdown();
         super.stop();
     }
     
@@ -84,10 +88,22 @@ public class PrintApplet extends Applet {
     
     /**
      * Cancel a job
-     * @param jobIndex The index of the job to cancel
+     * @param jobId The id of the job to cancel, as reported by getQueueInfo()
      */
-    public void cancelJob(int jobIndex) {
-        spooler.cancelJob(jobIndex);
+    public void cancelJob(int jobId) {
+        spooler.cancelJob(jobId);
+    }
+    
+    /**
+     * Set how many finished jobs getQueueInfo() keeps reporting. A finished
+     * job is dropped once there are more than <code>retainJobs</code>
+     * finished jobs and it finished more than <code>retainMinutes</code> ago.
+     * 
+     * @param retainJobs The number of finished jobs to keep
+     * @param retainMinutes The number of minutes to keep finished jobs for
+     */
+    public void setJobRetention(int retainJobs, int retainMinutes) {
+        spooler.setJobRetention(retainJobs, retainMinutes);
     }
     
     /**
@@ -106,15 +122,46 @@ public class PrintApplet extends Applet {
         }
     }
     
+    /**
+     * Set the number of worker threads used to prepare appended images, files
+     * and other elements.
+     * 
+     * @param imageThreads Workers for image conversion
+     * @param ioThreads Workers for file, URL, XML, PDF and RTF elements
+     */
+    public void setPreparerThreads(int imageThreads, int ioThreads) {
+        spooler.setPreparerThreads(imageThreads, ioThreads);
+    }
+    
+    /**
+     * Set how many bytes of converted images are kept so the same image
+     * appended again isn't converted again.
+     * 
+     * @param maxBytes The cache size, or 0 to convert every image
+     */
+    public void setImageCacheSize(int maxBytes) {
+        spooler.setImageCacheSize(maxBytes);
+    }
+    
+    /**
+     * getPreparerInfo returns the queue depths and timings of the element
+     * preparer pool.
+     * 
+     * @return A JSONObject with the preparer pool's current statistics
+     */
+    public String getPreparerInfo() {
+        return spooler.getPreparerInfo().toString();
+    }
+    
     /**
      * Returns a string with the contents of the job data. This is only really
      * useful for Raw data PrintJobs
      * 
-     * @param jobIndex The index of the job to get info for
+     * @param jobId The id of the job to get info for
      * @return A String representation of the job data
      */
-    public String getJobInfo(int jobIndex) {
-        return spooler.getJobInfo(jobIndex);
+    public String getJobInfo(int jobId) {
+        return spooler.getJobInfo(jobId);
     }
     
     /**
@@ -180,6 +227,17 @@ public class PrintApplet extends Applet {
         return "";
     }
     
+    /**
+     * Set how often the printer list is refreshed in the background. When a
+     * refresh finds printers added or removed, qzPrintersChanged(added,
+     * removed) is called in the browser with comma delimited printer names.
+     * 
+     * @param interval Milliseconds between refreshes, or 0 to stop refreshing
+     */
+    public void setPrinterRefreshInterval(int interval) {
+        spooler.setPrinterRefreshInterval(interval);
+    }
+    
     /**
      * Set the current printer.
      * 
@@ -282,6 +340,38 @@ public class PrintApplet extends Applet {
         btools.notifyBrowser("qzDoneAppending");
     }
     
+    /**
+     * Appends an image to the current print job, converted with the given
+     * options. See <code>ImageOptions</code> for the supported keys, e.g.
+     * <code>{"dither": "floyd-steinberg"}</code>.
+     * 
+     * @param imagePath The file path of the image
+     * @param lang The target raw printer language to translate the image to
+     * @param imageX The width of the image
+     * @param imageY The height of the image
+     * @param options The conversion options as a JSON object
+     */
+    public void appendImage(String imagePath, String lang, int imageX, int imageY, String options) {
+        
+        ImageOptions imageOptions;
+        try {
+            imageOptions = ImageOptions.parse(options);
+        } catch (JSONException ex) {
+            LogIt.log(Level.SEVERE, "Could not read image options.", ex);
+            spooler.setException(ex);
+            return;
+        }
+        ByteArrayBuilder bytes = new ByteArrayBuilder();
+        try {
+            bytes.append(imagePath, charset);
+        } catch (UnsupportedEncodingException ex) {
+            LogIt.log(Level.SEVERE, "Could not append image.", ex);
+        }
+        spooler.appendImage(bytes, charset, lang, imageX, imageY, imageOptions);
+        // Deprecated callback. Remove in a future version.
+        btools.notifyBrowser("qzDoneAppending");
+    }
+    
     /**
      * Appends an image to the current print job
      * 
@@ -481,6 +571,59 @@ public class PrintApplet extends Applet {
         btools.notifyBrowser("qzDonePrinting");
     }
     
+    /**
+     * Set how long the connection opened by printToHost is kept open for the
+     * next job to the same host and port. Many raw printers only accept one
+     * connection at a time, so keep this short if other machines print to
+     * the same printer.
+     * 
+     * @param idleTimeout Milliseconds, or 0 to close the connection after
+     * each job
+     */
+    public void setHostIdleTimeout(int idleTimeout) {
+        spooler.setHostIdleTimeout(idleTimeout);
+    }
+    
+    /**
+     * Set how long a raw job waits for the printer to acknowledge it before
+     * the job is failed.
+     * 
+     * @param timeout Milliseconds, or 0 to wait indefinitely
+     */
+    public void setRawPrintTimeout(int timeout) {
+        spooler.setRawPrintTimeout(timeout);
+    }
+    
+    /**
+     * Forget which images appended with the <code>cache</code> option are
+     * stored in printer memory, so they are sent again. Use after a printer
+     * has been restarted.
+     */
+    public void clearGraphicCache() {
+        spooler.clearGraphicCache(null);
+    }
+    
+    /**
+     * Forget which cached images are stored on one printer.
+     * 
+     * @param destination The printer name, or <code>host:port</code> for
+     * printToHost jobs
+     */
+    public void clearGraphicCache(String destination) {
+        spooler.clearGraphicCache(destination);
+    }
+    
+    /**
+     * Send printToHost jobs through a single non-blocking transport instead
+     * of one blocking connection per host. Suited to sending to many network
+     * printers at once.
+     * 
+     * @param useNio true to use the NIO transport
+     */
+    public void useNioTransport(boolean useNio) {
+        spooler.setUseNioTransport(useNio);
+    }
+    
     /**
      * Gets the current version of the qz-print applet
      * 
@@ -722,7 +865,9 @@ public class PrintApplet extends Applet {
     }
     
     /**
-     * openPort creates a port reference and opens it.
+     * openPort creates a port reference and opens it. Several ports can be
+     * open at once; the functions that don't take a port name use the port
+     * opened last.
      * 
      * @param portName The name of the port to open
      */
@@ -731,11 +876,10 @@ public class PrintApplet extends Applet {
     }
     
     /**
-     * closePort closes the currently open port. A port name is provided but is
-     * only used in the log. Since only one port can be open at a time, 
-     * closePort does not require you to specify the correct port.
+     * closePort closes the named port. If no port name is given every open
+     * port is closed.
      * 
-     * @param portName The name of the port to close. Only used in log.
+     * @param portName The name of the port to close
      */
     public void closePort(String portName) {
         spooler.closePort(portName);
@@ -751,6 +895,17 @@ public class PrintApplet extends Applet {
         spooler.setSerialBegin(serialBeginBytes);
     }
     
+    /**
+     * Set the character to mark the beginning of returned serial data on an
+     * open port.
+     * 
+     * @param portName The name of the port
+     * @param serialBegin The beginning character.
+     */
+    public void setSerialBegin(String portName, String serialBegin) {
+        spooler.setSerialBegin(portName, new ByteArrayBuilder(serialBegin.getBytes()));
+    }
+    
     /**
      * Set the character to mark the ending of returned serial data.
      * 
@@ -761,6 +916,40 @@ public class PrintApplet extends Applet {
         spooler.setSerialEnd(serialEndBytes);
     }
     
+    /**
+     * Set the character to mark the ending of returned serial data on an
+     * open port.
+     * 
+     * @param portName The name of the port
+     * @param serialEnd The ending character.
+     */
+    public void setSerialEnd(String portName, String serialEnd) {
+        spooler.setSerialEnd(portName, new ByteArrayBuilder(serialEnd.getBytes()));
+    }
+    
+    /**
+     * Frame returned serial data by a length prefix instead of the begin and
+     * end characters. Each frame starts with its length as a big-endian
+     * number.
+     * 
+     * @param lengthBytes The size of the length prefix: 1, 2 or 4, or 0 to
+     * use the begin and end characters again
+     */
+    public void setSerialLengthPrefix(int lengthBytes) {
+        spooler.setSerialLengthPrefix(lengthBytes);
+    }
+    
+    /**
+     * Frame returned serial data on an open port by a length prefix.
+     * 
+     * @param portName The name of the port
+     * @param lengthBytes The size of the length prefix: 1, 2 or 4, or 0 to
+     * use the begin and end characters again
+     */
+    public void setSerialLengthPrefix(String portName, int lengthBytes) {
+        spooler.setSerialLengthPrefix(portName, lengthBytes);
+    }
+    
     /**
      * Sets the properties for communicating with serial ports.
      * 
@@ -787,16 +976,30 @@ public class PrintApplet extends Applet {
     public void setSerialProperties(String baud, String dataBits, String stopBits, String parity, String flowControl) {
         spooler.setSerialProperties(baud, dataBits, stopBits, parity, flowControl);
     }
+
+    /**
+     * Sets the properties for communicating with an open port.
+     * 
+     * @param portName The name of the port
+     * @param baud
+     * @param dataBits
+     * @param stopBits
+     * @param parity
+     * @param flowControl
+     */
+    public void setSerialProperties(String portName, String baud, String dataBits, String stopBits, String parity, String flowControl) {
+        spooler.setSerialProperties(portName, baud, dataBits, stopBits, parity, flowControl);
+    }
     
     /**
      * Send serial data to the specified port.
      * 
-     * @param portName The port name to send data to
+     * @param portName The port name to send data to, or empty for the port
+     * opened last
      * @param serialData A string of the data to send.
      */
     public void send(String portName, String serialData) {
-        // portName is only used for display. Get current port name from SerialPrinter
-        spooler.sendSerialData(serialData);
+        spooler.sendSerialData(portName, serialData);
     }
     
     /**
@@ -808,6 +1011,16 @@ public class PrintApplet extends Applet {
         return spooler.getReturnData();
     }
     
+    /**
+     * Get any returned serial data from the specified port.
+     * 
+     * @param portName The name of the port
+     * @return The returned data
+     */
+    public String getReturnData(String portName) {
+        return spooler.getReturnData(portName);
+    }
+    
     /*
      * Deprecated functions. These should be removed in a future version.
      */
@@ -62,7 +62,13 @@ import qz.exception.NullCommandException;
  */
 public class PrintJob extends JLabel implements Printable {
     
-    private PrintJobState state = PrintJobState.STATE_CREATED;
+    private final PrintSpooler spooler;
+    private final int jobId;
+    private boolean printing = false;
+    private int pendingSends = 0;
+    private boolean releasePending = false;
+    private volatile PrintJobState state = PrintJobState.STATE_CREATED;
+    private volatile boolean failed = false;
     private final String title = "Print Job";
     private final ArrayList<PrintJobElement> rawData = new ArrayList<PrintJobElement>();;
     private Boolean running = true;
@@ -81,6 +87,17 @@ public class PrintJob extends JLabel implements Printable {
     private int copies = 1;
     private int leftMargin = 0;
     private int topMargin = 0;
+    
+    /**
+     * Create a PrintJob that reports its state changes to the given spooler.
+     * 
+     * @param spooler The spooler that owns this job
+     * @param jobId The job's id, which stays the same for the life of the job
+     */
+    PrintJob(PrintSpooler spooler, int jobId) {
+        this.spooler = spooler;
+        this.jobId = jobId;
+    }
         
     /**
      * Cancel a print job.
@@ -88,6 +105,49 @@ public class PrintJob extends JLabel implements Printable {
     public void cancel() {
         state = PrintJobState.STATE_CANCELLED;
         running = false;
+        notifySpooler();
+    }
+    
+    /**
+     * Get the job's id
+     * 
+     * @return The id assigned by the spooler
+     */
+    public int getJobId() {
+        return jobId;
+    }
+    
+    /**
+     * Check whether the job has completed or been cancelled
+     * 
+     * @return true if the job will not be printed again
+     */
+    public boolean isFinished() {
+        return state == PrintJobState.STATE_COMPLETE || state == PrintJobState.STATE_CANCELLED;
+    }
+    
+    /**
+     * Release the job's elements and their prepared data once the job has
+     * finished. If the job is still being sent the data is released when
+     * sending ends.
+     */
+    synchronized void release() {
+        if (printing) {
+            releasePending = true;
+            return;
+        }
+        for (PrintJobElement pje : rawData) {
+            pje.release();
+        }
+        rawData.clear();
+    }
+    
+    /**
+     * Let the spooler know this job's state may have changed so it can be
+     * moved along without polling.
+     */
+    void notifySpooler() {
+        spooler.jobStateChanged(this);
     }
     
     /**
@@ -135,9 +195,24 @@ public class PrintJob extends JLabel implements Printable {
      * @param imageY The height of the image
      */
     public void appendImage(ByteArrayBuilder imagePath, Charset charset, String lang, int imageX, int imageY) {
+        appendImage(imagePath, charset, lang, imageX, imageY, null);
+    }
+    
+    /**
+     * appendImage adds a raw image PrintJobElement converted with the given
+     * options
+     * 
+     * @param imagePath The file path of the image
+     * @param charset The charset of the file path
+     * @param lang The raw printer language to translate the image to
+     * @param imageX The width of the image
+     * @param imageY The height of the image
+     * @param options The conversion options, or null for the defaults
+     */
+    public void appendImage(ByteArrayBuilder imagePath, Charset charset, String lang, int imageX, int imageY, ImageOptions options) {
         type = PrintJobType.TYPE_RAW;
         try {
-            PrintJobElement pje = new PrintJobElement(this, imagePath, PrintJobElementType.TYPE_IMAGE, charset, lang, imageX, imageY);
+            PrintJobElement pje = new PrintJobElement(this, imagePath, PrintJobElementType.TYPE_IMAGE, charset, lang, imageX, imageY, options);
             rawData.add(pje);
         }
         catch(NullPointerException ex) {
@@ -243,11 +318,12 @@ public class PrintJob extends JLabel implements Printable {
         state = PrintJobState.STATE_PROCESSING;
         
         ListIterator dataIterator = rawData.listIterator();
+        PrintJobElementPreparerPool preparerPool = spooler.getPreparerPool();
 
         while(dataIterator.hasNext()) {
             try {
                 PrintJobElement pje = (PrintJobElement) dataIterator.next();
-                pje.prepare();
+                pje.prepare(preparerPool);
             } catch (IOException ex) {
                 LogIt.log(Level.SEVERE, "Could not prepare job.", ex);
             } catch (InvalidRawImageException ex) {
@@ -257,6 +333,9 @@ public class PrintJob extends JLabel implements Printable {
             }
         }
         
+        // Covers jobs with no elements and elements that finished already
+        notifySpooler();
+        
     }
     
     public void isProcessed() {
@@ -321,41 +400,58 @@ public class PrintJob extends JLabel implements Printable {
      * print concatenates the PrintJobElements and sends the data to the proper
      * printer
      */
-    @SuppressWarnings("unchecked")
     public void print() {
-        state = PrintJobState.STATE_SENDING;
+        synchronized (this) {
+            if (state == PrintJobState.STATE_CANCELLED) {
+                return;
+            }
+            printing = true;
+            // Sending isn't done until printCopies returns and any data
+            // handed to the network transport has been written
+            pendingSends = 1;
+            state = PrintJobState.STATE_SENDING;
+        }
+        try {
+            printCopies();
+        } finally {
+            sendFinished();
+        }
+    }
+    
+    /**
+     * Called when printCopies returns and when each send handed to the
+     * network transport completes. The last one completes the job and lets
+     * the spooler know.
+     */
+    private void sendFinished() {
+        synchronized (this) {
+            if (--pendingSends > 0) {
+                return;
+            }
+            printing = false;
+            if (state != PrintJobState.STATE_CANCELLED) {
+                state = PrintJobState.STATE_COMPLETE;
+            }
+            if (releasePending) {
+                release();
+            }
+        }
+        notifySpooler();
+    }
+    
+    /**
+     * Sends each copy of the job to the printer
+     */
+    @SuppressWarnings("unchecked")
+    private void printCopies() {
+        
+        if(type == PrintJobType.TYPE_RAW) {
+            printRawCopies();
+            return;
+        }
         
         for(int i=0; i < copies; i++) {
-            if(type == PrintJobType.TYPE_RAW) {
-                ByteArrayBuilder jobData = new ByteArrayBuilder();
-
-                // Concatenate all the PrintJobElements into one ByteArrayBuilder
-                ListIterator dataIterator = rawData.listIterator();
-
-                while(dataIterator.hasNext()) {
-                    PrintJobElement pje = (PrintJobElement) dataIterator.next();
-                    ByteArrayBuilder bytes = pje.getData();
-                    jobData.append(bytes.getByteArray());
-                }
-
-                try {
-
-                    printer.setJobTitle(title);
-                    if(jobHost != null) {
-                        RawPrinter rawPrinter = (RawPrinter)printer;
-                        rawPrinter.printToHost(jobData, jobHost, jobPort);
-                    }
-                    else if(alternatePrint) {
-                        printer.printAlternate(jobData);
-                    }
-                    else {
-                        printer.printRaw(jobData);
-                    }
-                } catch (PrintException ex) {
-                    LogIt.log(Level.SEVERE, "Could not print raw job.", ex);
-                }
-            }
-            else if(type == PrintJobType.TYPE_HTML) {
+            if(type == PrintJobType.TYPE_HTML) {
 
                 ByteArrayBuilder jobData = new ByteArrayBuilder();
 
@@ -574,10 +670,122 @@ public class PrintJob extends JLabel implements Printable {
                 LogIt.log(Level.WARNING, "Unsupported job type.");
             }
         }    
-        state = PrintJobState.STATE_COMPLETE;
 
     }
     
+    /**
+     * Sends a raw job. The data is put together once; when possible the
+     * printer is asked to make the copies itself, either through the
+     * language's quantity command or the print service's Copies attribute.
+     * Otherwise the same data is sent once per copy.
+     */
+    private void printRawCopies() {
+        ByteArrayBuilder jobData = new ByteArrayBuilder();
+
+        // Chain the PrintJobElements' data together without copying
+        // it, printers stream it out one piece at a time
+        ListIterator dataIterator = rawData.listIterator();
+
+        while(dataIterator.hasNext()) {
+            PrintJobElement pje = (PrintJobElement) dataIterator.next();
+            ByteArrayBuilder bytes = pje.getData();
+            if(bytes != null) {
+                jobData.append(bytes);
+            }
+        }
+
+        int sends = copies;
+        if(copies > 1) {
+            ByteArrayBuilder copyData = CopyUtilities.applyCopies(jobData, copies);
+            if(copyData != null) {
+                jobData = copyData;
+                sends = 1;
+            }
+            else if(jobHost == null && !alternatePrint && printer.setCopies(copies)) {
+                LogIt.log("Using print service copies for " + copies + " copies");
+                sends = 1;
+            }
+        }
+
+        try {
+            printer.setJobTitle(title);
+            if(jobHost == null && !alternatePrint && printer instanceof RawPrinter) {
+                submitRawCopies((RawPrinter)printer, jobData, sends);
+                return;
+            }
+            if(printer instanceof NetworkPrinter) {
+                submitNetworkCopies((NetworkPrinter)printer, jobData, sends);
+                return;
+            }
+            for(int i=0; i < sends && state != PrintJobState.STATE_CANCELLED; i++) {
+                if(jobHost != null && printer instanceof RawPrinter) {
+                    RawPrinter rawPrinter = (RawPrinter)printer;
+                    rawPrinter.printToHost(jobData, jobHost, jobPort, spooler.getHostConnectionPool());
+                }
+                else if(alternatePrint && jobHost == null) {
+                    printer.printAlternate(jobData);
+                }
+                else {
+                    printer.printRaw(jobData);
+                }
+            }
+        } catch (PrintException ex) {
+            failed = true;
+            LogIt.log(Level.SEVERE, "Could not print raw job.", ex);
+        }
+    }
+    
+    /**
+     * Hands each copy to the network transport without waiting for it to be
+     * written, so the send queue thread isn't held up. The job completes on
+     * the transport's callback once every copy has been written.
+     * 
+     * @param networkPrinter The target printer
+     * @param jobData The data for one copy
+     * @param sends The number of times to send the data
+     */
+    private void submitNetworkCopies(NetworkPrinter networkPrinter, ByteArrayBuilder jobData, int sends) {
+        NioHostTransport.SendListener listener = new NioHostTransport.SendListener() {
+            public void sendCompleted(NioHostTransport.Send send, IOException error) {
+                if (error != null) {
+                    failed = true;
+                    LogIt.log(Level.SEVERE, "Could not print raw job.", error);
+                }
+                sendFinished();
+            }
+        };
+        for(int i=0; i < sends && state != PrintJobState.STATE_CANCELLED; i++) {
+            synchronized (this) {
+                pendingSends++;
+            }
+            networkPrinter.submitRaw(jobData, listener);
+        }
+    }
+    
+    /**
+     * Hands each copy to the print service as soon as the previous one has
+     * been submitted, then waits for the printer to acknowledge them all.
+     * 
+     * @param rawPrinter The target printer
+     * @param jobData The data for one copy
+     * @param sends The number of times to send the data
+     * @throws PrintException If a copy failed or wasn't acknowledged in time
+     */
+    private void submitRawCopies(RawPrinter rawPrinter, ByteArrayBuilder jobData, int sends) throws PrintException {
+        ArrayList<PrintJobCompletion> completions = new ArrayList<PrintJobCompletion>();
+        for(int i=0; i < sends && state != PrintJobState.STATE_CANCELLED; i++) {
+            completions.add(rawPrinter.submitRaw(jobData));
+        }
+        for(PrintJobCompletion completion : completions) {
+            if(state == PrintJobState.STATE_CANCELLED) {
+                completion.cancel(true);
+            }
+            else {
+                rawPrinter.awaitCompletion(completion);
+            }
+        }
+    }
+    
     /**
      * Set the job's printer.
      * 
@@ -587,6 +795,42 @@ public class PrintJob extends JLabel implements Printable {
         this.printer = printer;
     }
     
+    /**
+     * Get the name of the destination this job is sent to. Jobs going to the
+     * same destination are sent one after another, in order.
+     * 
+     * @return The remote host and port, or the printer's name
+     */
+    public String getDestination() {
+        if (jobHost != null) {
+            return jobHost + ":" + jobPort;
+        }
+        return printer.getName();
+    }
+    
+    /**
+     * Check whether sending the job's raw data failed
+     * 
+     * @return True if the printer didn't accept the data
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+    
+    /**
+     * Get the cache of graphics stored in printer memory, for elements that
+     * ask to be cached.
+     * 
+     * @return The spooler's graphic cache, or null when the job is written
+     * to a file
+     */
+    GraphicCache getGraphicCache() {
+        if (printer instanceof FilePrinter) {
+            return null;
+        }
+        return spooler.getGraphicCache();
+    }
+    
     /**
      * Get the job's current printer.
      * 
@@ -664,7 +908,7 @@ public class PrintJob extends JLabel implements Printable {
     public void setHostOutput(String jobHost, int jobPort) {
         this.jobHost = jobHost;
         this.jobPort = jobPort;
-        this.printer = new RawPrinter();
+        this.printer = spooler.getHostPrinter(jobHost, jobPort);
     }
     
     /**
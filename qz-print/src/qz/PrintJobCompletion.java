@@ -0,0 +1,154 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import javax.print.CancelablePrintJob;
+import javax.print.DocPrintJob;
+import javax.print.PrintException;
+import javax.print.event.PrintJobEvent;
+import javax.print.event.PrintJobListener;
+
+/**
+ * PrintJobCompletion tracks a job handed to a <code>PrintService</code>. It
+ * listens to the job's events and completes as soon as the printer has the
+ * data, or the job fails or is cancelled. The result is the
+ * <code>PrintJobEvent</code> reason that completed it.
+ */
+public class PrintJobCompletion implements PrintJobListener, Future<Integer> {
+
+    private final DocPrintJob job;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile int reason = 0;
+    private volatile PrintException error;
+
+    PrintJobCompletion(DocPrintJob job) {
+        this.job = job;
+        job.addPrintJobListener(this);
+    }
+
+    /**
+     * Complete the job with an error, e.g. when submitting it failed
+     *
+     * @param error The error that stopped the job
+     */
+    void fail(PrintException error) {
+        complete(PrintJobEvent.JOB_FAILED, error);
+    }
+
+    /**
+     * Set the result. The first result wins; later ones are ignored.
+     *
+     * @return true if this call set the result
+     */
+    private synchronized boolean complete(int reason, PrintException error) {
+        if (done.getCount() == 0) {
+            return false;
+        }
+        this.reason = reason;
+        this.error = error;
+        done.countDown();
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone() || !(job instanceof CancelablePrintJob)) {
+            return false;
+        }
+        try {
+            ((CancelablePrintJob) job).cancel();
+        } catch (PrintException ex) {
+            LogIt.log(Level.WARNING, "Could not cancel print job.", ex);
+            return false;
+        }
+        // The job may have finished before it could be cancelled
+        complete(PrintJobEvent.JOB_CANCELED, null);
+        return isCancelled();
+    }
+
+    public boolean isCancelled() {
+        return isDone() && reason == PrintJobEvent.JOB_CANCELED;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public Integer get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Print job was not acknowledged within " + unit.toMillis(timeout) + " ms");
+        }
+        return result();
+    }
+
+    private Integer result() throws ExecutionException {
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return Integer.valueOf(reason);
+    }
+
+    //@Override //JDK 1.6
+    public void printDataTransferCompleted(PrintJobEvent pje) {
+        LogIt.log(pje);
+        complete(pje.getPrintEventType(), null);
+    }
+
+    //@Override //JDK 1.6
+    public void printJobCompleted(PrintJobEvent pje) {
+        LogIt.log(pje);
+        complete(pje.getPrintEventType(), null);
+    }
+
+    //@Override //JDK 1.6
+    public void printJobFailed(PrintJobEvent pje) {
+        LogIt.log(pje);
+        complete(pje.getPrintEventType(), new PrintException("Print job failed."));
+    }
+
+    //@Override //JDK 1.6
+    public void printJobCanceled(PrintJobEvent pje) {
+        LogIt.log(pje);
+        complete(pje.getPrintEventType(), null);
+    }
+
+    //@Override //JDK 1.6
+    public void printJobNoMoreEvents(PrintJobEvent pje) {
+        LogIt.log(pje);
+        complete(pje.getPrintEventType(), null);
+    }
+
+    //@Override //JDK 1.6
+    public void printJobRequiresAttention(PrintJobEvent pje) {
+        LogIt.log(pje);
+    }
+}
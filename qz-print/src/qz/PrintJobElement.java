@@ -51,7 +51,7 @@ import qz.exception.NullCommandException;
 public class PrintJobElement {
     
     private int sequence;
-    private boolean prepared;
+    private volatile boolean prepared;
     private PrintJobElementType type;
     private PrintJob pj;
     private ByteArrayBuilder data;
@@ -62,6 +62,7 @@ public class PrintJobElement {
     private int dotDensity = 32;
     private LanguageType lang;
     private String xmlTag;
+    private ImageOptions imageOptions;
     private BufferedImage bufferedImage;
     private PDDocument pdfFile;
     private PDPageable pdfPages;
@@ -82,11 +83,12 @@ public class PrintJobElement {
         
     }
 
-    PrintJobElement(PrintJob pj, ByteArrayBuilder data, PrintJobElementType type, Charset charset, String lang, int imageX, int imageY) {
+    PrintJobElement(PrintJob pj, ByteArrayBuilder data, PrintJobElementType type, Charset charset, String lang, int imageX, int imageY, ImageOptions imageOptions) {
         
         this.lang = LanguageType.getType(lang);
         this.imageX = imageX;
         this.imageY = imageY;
+        this.imageOptions = imageOptions;
         
         this.pj = pj;
         this.data = data;
@@ -120,16 +122,21 @@ public class PrintJobElement {
     }
     
     /**
-     * Prepare the PrintJobElement
+     * Prepare the PrintJobElement on the spooler's preparer pool
      * 
+     * @param pool The pool to prepare the element on
      * @throws IOException
      * @throws InvalidRawImageException
      * @throws NullCommandException 
      */
-    public void prepare() throws IOException, InvalidRawImageException, NullCommandException {
-        PrintJobElementPreparer preparer = new PrintJobElementPreparer(type, data, charset, lang, dotDensity, imageX, imageY, xmlTag, this);
-        Thread preparerThread = new Thread(preparer);
-        preparerThread.start();
+    public void prepare(PrintJobElementPreparerPool pool) throws IOException, InvalidRawImageException, NullCommandException {
+        PrintJobElementPreparer preparer = new PrintJobElementPreparer(type, data, charset, lang, dotDensity, imageX, imageY, imageOptions, xmlTag, this);
+        preparer.setBandPool(pool.getBandPool());
+        preparer.setImageCache(pool.getImageCache());
+        if (imageOptions != null && imageOptions.isCache() && pj.getGraphicCache() != null) {
+            preparer.setGraphicCache(pj.getGraphicCache(), pj.getDestination(), pj.getJobId());
+        }
+        pool.submit(preparer);
     }
     
     /**
@@ -141,12 +148,33 @@ public class PrintJobElement {
      * @param pdfFile The PDDocument representing the PDF file
      */
     public void donePreparing(ByteArrayBuilder preparedData, BufferedImage bufferedImage, JEditorPane rtfEditor, PDDocument pdfFile) {
-        this.prepared = true;
         this.preparedData = preparedData;
         this.bufferedImage = bufferedImage;
         this.rtfEditor = rtfEditor;
         this.pdfFile = pdfFile;
+        // Set last so the prepared results are visible to the spooler thread
+        this.prepared = true;
         LogIt.log("Done preparing PrintJobElement.");
+        pj.notifySpooler();
+    }
+    
+    /**
+     * Drop the element's source and prepared data once its job has finished.
+     * Any PDF that is still open is closed.
+     */
+    void release() {
+        if (pdfFile != null) {
+            try {
+                pdfFile.close();
+            } catch (IOException ex) {
+                LogIt.log(Level.WARNING, "Could not close PDF file. " + ex);
+            }
+        }
+        data = null;
+        preparedData = null;
+        bufferedImage = null;
+        pdfFile = null;
+        rtfEditor = null;
     }
     
     /**
@@ -24,19 +24,28 @@ package qz;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.Charset;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Iterator;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Level;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.JEditorPane;
 import javax.xml.parsers.ParserConfigurationException;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.w3c.dom.DOMException;
+import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 import qz.exception.InvalidRawImageException;
 import qz.exception.NullCommandException;
@@ -47,6 +56,12 @@ import qz.exception.NullCommandException;
  */
 public class PrintJobElementPreparer implements Runnable{
 
+    /**
+     * PNG and BMP images with at least this many pixels are decoded row by
+     * row as they're converted
+     */
+    public static final long STREAMING_MIN_PIXELS = 4 * 1024 * 1024;
+
     private final PrintJobElementType type;
     private final ByteArrayBuilder data;
     private final Charset charset;
@@ -54,16 +69,22 @@ public class PrintJobElementPreparer implements Runnable{
     private final int dotDensity;
     private final int imageX;
     private final int imageY;
+    private final ImageOptions imageOptions;
     private final String xmlTag;
     private final PrintJobElement pje;
     private final JEditorPane rtfEditor = new JEditorPane();
+    private ThreadPoolExecutor bandPool;
+    private ImageCommandCache imageCache;
+    private GraphicCache graphicCache;
+    private String destination;
+    private int jobId;
     
     private String pdfFileName;
     private ByteArrayBuilder preparedData;
     private BufferedImage bufferedImage;
     private PDDocument pdfFile;
     
-    PrintJobElementPreparer(PrintJobElementType type, ByteArrayBuilder data, Charset charset, LanguageType lang, int dotDensity, int imageX, int imageY, String xmlTag, PrintJobElement pje) {
+    PrintJobElementPreparer(PrintJobElementType type, ByteArrayBuilder data, Charset charset, LanguageType lang, int dotDensity, int imageX, int imageY, ImageOptions imageOptions, String xmlTag, PrintJobElement pje) {
         this.type = type;
         this.data = data;
         this.charset = charset;
@@ -71,10 +92,178 @@ public class PrintJobElementPreparer implements Runnable{
         this.dotDensity = dotDensity;
         this.imageX = imageX;
         this.imageY = imageY;
+        this.imageOptions = imageOptions;
         this.xmlTag = xmlTag;
         this.pje = pje;
     }
     
+    /**
+     * Getter for the type of element being prepared
+     * 
+     * @return The element's type
+     */
+    public PrintJobElementType getType() {
+        return type;
+    }
+    
+    /**
+     * Set the pool used to convert large images in bands
+     * 
+     * @param bandPool The band pool, or null to convert on this thread only
+     */
+    public void setBandPool(ThreadPoolExecutor bandPool) {
+        this.bandPool = bandPool;
+    }
+    
+    /**
+     * Set the cache used to skip converting images that were converted before
+     * with the same settings
+     * 
+     * @param imageCache The image cache, or null to convert every image
+     */
+    public void setImageCache(ImageCommandCache imageCache) {
+        this.imageCache = imageCache;
+    }
+    
+    /**
+     * Store the image in printer memory and recall it by name when the same
+     * image is sent to the same printer again
+     * 
+     * @param graphicCache The cache of graphics held by each printer
+     * @param destination The printer name or host:port the job is sent to
+     * @param jobId The job the element belongs to
+     */
+    public void setGraphicCache(GraphicCache graphicCache, String destination, int jobId) {
+        this.graphicCache = graphicCache;
+        this.destination = destination;
+        this.jobId = jobId;
+    }
+    
+    /**
+     * Build this element's image cache key
+     * 
+     * @param source The hash of the image data, or its URL and ETag
+     * @return The key
+     */
+    private String getCacheKey(String source) {
+        return ImageCommandCache.getKey(source, charset, lang, dotDensity, imageX, imageY, imageOptions);
+    }
+    
+    /**
+     * Open a large PNG or BMP so it is decoded row by row while it's
+     * converted, instead of being decoded into memory all at once first
+     * 
+     * @param imageData The image file
+     * @return The image's rows, or null if the image is small or can't be
+     * streamed and should be read with ImageIO
+     */
+    private static ImageRowSource openStreamed(byte[] imageData) {
+        try {
+            PngRowReader png = PngRowReader.open(new ByteArrayInputStream(imageData));
+            if (png != null) {
+                if ((long) png.getWidth() * png.getHeight() >= STREAMING_MIN_PIXELS) {
+                    return png;
+                }
+                png.close();
+                return null;
+            }
+            ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData));
+            if (in == null) {
+                return null;
+            }
+            StripRowReader strips = null;
+            boolean streamed = false;
+            try {
+                strips = StripRowReader.open(in);
+                if (strips != null && (long) strips.getWidth() * strips.getHeight() >= STREAMING_MIN_PIXELS) {
+                    streamed = true;
+                    return strips;
+                }
+            } finally {
+                if (!streamed) {
+                    if (strips != null) {
+                        strips.close();
+                    }
+                    in.close();
+                }
+            }
+        } catch (IOException ex) {
+            LogIt.log(Level.WARNING, "Could not stream image, decoding it whole. " + ex);
+        }
+        return null;
+    }
+    
+    /**
+     * Read the resolution stored in an image file, such as a PNG pHYs chunk
+     * or JFIF density, from its metadata without decoding the pixels
+     * 
+     * @param imageData The image file
+     * @return The horizontal resolution in dots per inch, or 0 if the file
+     * doesn't give one
+     */
+    private static int readImageDpi(byte[] imageData) {
+        try {
+            ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData));
+            if (in == null) {
+                return 0;
+            }
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) {
+                    return 0;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, false);
+                    IIOMetadata metadata = reader.getImageMetadata(0);
+                    if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+                        return 0;
+                    }
+                    Node root = metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+                    for (Node dimension = root.getFirstChild(); dimension != null; dimension = dimension.getNextSibling()) {
+                        if (!dimension.getNodeName().equals("Dimension")) {
+                            continue;
+                        }
+                        for (Node node = dimension.getFirstChild(); node != null; node = node.getNextSibling()) {
+                            if (node.getNodeName().equals("HorizontalPixelSize")) {
+                                // Millimeters per pixel
+                                Node value = node.getAttributes().getNamedItem("value");
+                                float size = value == null ? 0 : Float.parseFloat(value.getNodeValue());
+                                return size > 0 ? Math.round(25.4f / size) : 0;
+                            }
+                        }
+                    }
+                } finally {
+                    reader.dispose();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            LogIt.log(Level.WARNING, "Could not read image resolution. " + ex);
+        } catch (RuntimeException ex) {
+            LogIt.log(Level.WARNING, "Could not read image resolution. " + ex);
+        }
+        return 0;
+    }
+    
+    /**
+     * Read a stream to the end
+     * 
+     * @param in The stream
+     * @return The data read
+     * @throws IOException 
+     */
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(20480);
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+    
     public void run() {
         
         // An image file, pull the file into an ImageWrapper and get the 
@@ -86,23 +275,78 @@ public class PrintJobElementPreparer implements Runnable{
                 // Prepare the image
                 String file = new String(data.getByteArray(), charset.name());
                 
-                BufferedImage bi;
-                ImageWrapper iw;
+                // Commands for stored graphics depend on what the printer
+                // already has, so only plain conversions are cached
+                boolean useCache = imageCache != null && graphicCache == null && imageCache.getMaxBytes() > 0;
+                String key = null;
+                byte[] command = null;
+                byte[] imageData = null;
                 if (ByteUtilities.isBase64Image(file)) {
-                    byte[] imageData = Base64.decode(file.split(",")[1]);
-                    bi = ImageIO.read(new ByteArrayInputStream(imageData));
+                    if (useCache) {
+                        key = getCacheKey(ImageCommandCache.hash(data.getByteArray()));
+                        command = imageCache.get(key);
+                    }
+                    if (command == null) {
+                        imageData = Base64.decode(file.split(",")[1]);
+                    }
                 } else {
-                    bi = ImageIO.read(new URL(file));
+                    URLConnection con = new URL(file).openConnection();
+                    String etag = useCache ? con.getHeaderField("ETag") : null;
+                    if (etag != null) {
+                        // An unchanged ETag means the same image, so a hit
+                        // doesn't need to download it again
+                        key = getCacheKey(file + " " + etag);
+                        command = imageCache.get(key);
+                    }
+                    InputStream in = con.getInputStream();
+                    try {
+                        if (command == null) {
+                            imageData = readFully(in);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    if (useCache && key == null) {
+                        key = getCacheKey(ImageCommandCache.hash(imageData));
+                        command = imageCache.get(key);
+                    }
+                }
+                
+                if (command == null) {
+                    ImageWrapper iw;
+                    ImageRowSource rows = openStreamed(imageData);
+                    if (rows != null) {
+                        iw = new ImageWrapper(rows, lang);
+                    } else {
+                        BufferedImage bi = ImageIO.read(new ByteArrayInputStream(imageData));
+                        iw = new ImageWrapper(bi, lang);
+                    }
+                    iw.setSourceDpi(rows instanceof PngRowReader
+                            ? ((PngRowReader) rows).getDpi() : readImageDpi(imageData));
+                    iw.setCharset(charset);
+                    iw.setBandPool(bandPool);
+                    // Image density setting (ESCP only)
+                    iw.setDotDensity(dotDensity);
+                    // Image coordinates, (EPL only)
+                    iw.setxPos(imageX);
+                    iw.setyPos(imageY);
+                    // Quantization, dithering and other conversion options
+                    if (imageOptions != null) {
+                        imageOptions.applyTo(iw);
+                    }
+                    
+                    if (graphicCache != null) {
+                        command = iw.getImageCommand(graphicCache, destination, jobId);
+                    }
+                    else {
+                        command = iw.getImageCommand();
+                    }
+                    if (key != null) {
+                        imageCache.put(key, command);
+                    }
                 }
-                iw = new ImageWrapper(bi, lang);
-                iw.setCharset(charset);
-                // Image density setting (ESCP only)
-                iw.setDotDensity(dotDensity);
-                // Image coordinates, (EPL only)
-                iw.setxPos(imageX);
-                iw.setyPos(imageY);
                 
-                this.preparedData = new ByteArrayBuilder(iw.getImageCommand());
+                this.preparedData = new ByteArrayBuilder(command);
                 
             } catch (UnsupportedEncodingException ex) {
                 LogIt.log(Level.WARNING, "Unsupported encoding exception: " + ex);
@@ -0,0 +1,243 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * PrintJobElementPreparerPool is the shared set of worker threads used to
+ * prepare PrintJobElements. Image conversion is CPU bound and runs on a pool
+ * sized to the number of processors, while file, XML, PDF and RTF elements
+ * spend most of their time fetching data and run on a larger pool. Each pool
+ * has a bounded queue; when a queue is full the submitting thread prepares
+ * the element itself, which slows down whoever is appending too fast.
+ * Large images are also split into bands that are converted in parallel on a
+ * third pool, the same size as the image pool. Converted images are kept
+ * in a cache shared by all preparers.
+ */
+public class PrintJobElementPreparerPool {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private final ThreadPoolExecutor imagePool;
+    private final ThreadPoolExecutor ioPool;
+    private final ThreadPoolExecutor bandPool;
+    private final ImageCommandCache imageCache = new ImageCommandCache();
+
+    private final AtomicLong preparedCount = new AtomicLong();
+    private final AtomicLong totalPrepareTime = new AtomicLong();
+    private final AtomicLong maxPrepareTime = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+
+    /**
+     * Creates a pool with one image thread per processor and four times as
+     * many I/O threads, capped at 16.
+     */
+    PrintJobElementPreparerPool() {
+        this(Runtime.getRuntime().availableProcessors(),
+                Math.min(16, Runtime.getRuntime().availableProcessors() * 4),
+                DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates a pool with the given number of workers.
+     *
+     * @param imageThreads Workers for image conversion
+     * @param ioThreads Workers for file, URL, XML, PDF and RTF elements
+     * @param queueCapacity Number of waiting elements each pool will hold
+     * before the submitting thread has to prepare the element itself
+     */
+    PrintJobElementPreparerPool(int imageThreads, int ioThreads, int queueCapacity) {
+        imagePool = createPool("qz-prepare-image", imageThreads, queueCapacity);
+        ioPool = createPool("qz-prepare-io", ioThreads, queueCapacity);
+        bandPool = createPool("qz-prepare-band", imageThreads, queueCapacity);
+    }
+
+    private static ThreadPoolExecutor createPool(final String name, int threads, int queueCapacity) {
+        threads = Math.max(1, threads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        return pool;
+    }
+
+    /**
+     * Queue a preparer on the pool that matches its element type. Raw and
+     * HTML elements need no work and are prepared on the calling thread.
+     *
+     * @param preparer The preparer to run
+     */
+    public void submit(final PrintJobElementPreparer preparer) {
+        final long queued = System.currentTimeMillis();
+        Runnable timed = new Runnable() {
+            public void run() {
+                long started = System.currentTimeMillis();
+                try {
+                    preparer.run();
+                } finally {
+                    recordTimes(preparer.getType(), started - queued, System.currentTimeMillis() - started);
+                }
+            }
+        };
+
+        switch (preparer.getType()) {
+            case TYPE_IMAGE:
+            case TYPE_IMAGE_PS:
+                imagePool.execute(timed);
+                break;
+            case TYPE_XML:
+            case TYPE_FILE:
+            case TYPE_PDF:
+            case TYPE_RTF:
+                ioPool.execute(timed);
+                break;
+            default:
+                timed.run();
+        }
+    }
+
+    private void recordTimes(PrintJobElementType type, long waitTime, long prepareTime) {
+        preparedCount.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+        totalPrepareTime.addAndGet(prepareTime);
+        long max = maxPrepareTime.get();
+        while (prepareTime > max && !maxPrepareTime.compareAndSet(max, prepareTime)) {
+            max = maxPrepareTime.get();
+        }
+        LogIt.log(Level.FINE, "Prepared " + type + " element in " + prepareTime
+                + " ms after waiting " + waitTime + " ms.");
+    }
+
+    /**
+     * Change the number of workers for each pool.
+     *
+     * @param imageThreads Workers for image conversion
+     * @param ioThreads Workers for file, URL, XML, PDF and RTF elements
+     */
+    public void setThreads(int imageThreads, int ioThreads) {
+        resize(imagePool, imageThreads);
+        resize(bandPool, imageThreads);
+        resize(ioPool, ioThreads);
+        LogIt.log("Preparer threads set to " + imagePool.getMaximumPoolSize()
+                + " image, " + ioPool.getMaximumPoolSize() + " I/O");
+    }
+
+    private static void resize(ThreadPoolExecutor pool, int threads) {
+        threads = Math.max(1, threads);
+        // Core size may never exceed maximum size, so order matters
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Get the pool that converts bands of large images in parallel
+     *
+     * @return The band pool
+     */
+    public ThreadPoolExecutor getBandPool() {
+        return bandPool;
+    }
+
+    /**
+     * Get the cache of converted image commands shared by all preparers
+     *
+     * @return The image cache
+     */
+    public ImageCommandCache getImageCache() {
+        return imageCache;
+    }
+
+    /**
+     * @return Number of image elements waiting for a worker
+     */
+    public int getImageQueueDepth() {
+        return imagePool.getQueue().size();
+    }
+
+    /**
+     * @return Number of file, URL, XML, PDF and RTF elements waiting for a
+     * worker
+     */
+    public int getIOQueueDepth() {
+        return ioPool.getQueue().size();
+    }
+
+    /**
+     * @return Number of elements prepared so far
+     */
+    public long getPreparedCount() {
+        return preparedCount.get();
+    }
+
+    /**
+     * @return Average time in milliseconds spent preparing an element
+     */
+    public long getAveragePrepareTime() {
+        long count = preparedCount.get();
+        return count == 0 ? 0 : totalPrepareTime.get() / count;
+    }
+
+    /**
+     * @return Longest time in milliseconds spent preparing an element
+     */
+    public long getMaxPrepareTime() {
+        return maxPrepareTime.get();
+    }
+
+    /**
+     * @return Average time in milliseconds an element waited for a worker
+     */
+    public long getAverageWaitTime() {
+        long count = preparedCount.get();
+        return count == 0 ? 0 : totalWaitTime.get() / count;
+    }
+
+    /**
+     * Stop accepting new work. Elements already queued will still be
+     * prepared, then the workers exit. Called when the applet stops, since
+     * the plugin JVM outlives it.
+     */
+    public void shutdown() {
+        imagePool.shutdown();
+        ioPool.shutdown();
+        bandPool.shutdown();
+    }
+}
@@ -31,18 +31,23 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.print.PrintService;
-import javax.print.PrintServiceLookup;
-import javax.print.attribute.PrintServiceAttributeSet;
-import javax.print.attribute.standard.PrinterName;
 import qz.exception.InvalidFileTypeException;
 import qz.exception.InvalidRawImageException;
 import qz.exception.NullCommandException;
 import qz.exception.NullPrintServiceException;
 import qz.json.JSONArray;
+import qz.json.JSONException;
+import qz.json.JSONObject;
 import qz.reflection.ReflectException;
 
 /**
@@ -58,11 +63,24 @@ public class PrintSpooler implements Runnable {
     private PrintJob currentJob;
     private Thread currentJobThread;
     private JSONArray queueInfo;
-    private final ArrayList<PrintJob> spool = new ArrayList<PrintJob>();
-    private ListIterator<PrintJob> spoolIterator;
+    private final LinkedHashMap<Integer, PrintJob> spool = new LinkedHashMap<Integer, PrintJob>();
+    private final LinkedHashMap<Integer, FinishedJob> finishedJobs = new LinkedHashMap<Integer, FinishedJob>();
+    private int nextJobId = 0;
+    private int retainJobs = 100;
+    private long retainTime = 0;
+    private final BlockingQueue<PrintJob> jobEvents = new LinkedBlockingQueue<PrintJob>();
+    private final ArrayList<PrintJob> waitingJobs = new ArrayList<PrintJob>();
+    private final HashMap<String, PrinterSendQueue> sendQueues = new HashMap<String, PrinterSendQueue>();
+    private final PrintJobElementPreparerPool preparerPool = new PrintJobElementPreparerPool();
+    private final HostConnectionPool hostConnectionPool = new HostConnectionPool();
+    private final GraphicCache graphicCache = new GraphicCache();
+    private final HashMap<String, NetworkPrinter> networkPrinters = new HashMap<String, NetworkPrinter>();
+    private NioHostTransport hostTransport;
+    private boolean useNioTransport = false;
+    private int hostIdleTimeout = NioHostTransport.DEFAULT_IDLE_TIMEOUT;
     private Printer currentPrinter;
     private String lastPrinterName;
-    private ArrayList<Printer> printerList;
+    private final PrinterRegistry printerRegistry = new PrinterRegistry();
     //private String printerListString;
     private FilePrinter filePrinter;
     private SerialPrinter serialPrinter;
@@ -71,20 +89,20 @@ public class PrintSpooler implements Runnable {
     private boolean logPSFeatures;
     private String endOfDocument;
     private int docsPerSpool;
-    private int openJobs;
+    private final ArrayList<PrintJob> openJobs = new ArrayList<PrintJob>();
     private NetworkUtilities networkUtilities;
     private String macAddress;
     private String ipAddress;
     private boolean alternatePrint;
     private Applet applet;
     private Throwable exception;
-    private PrintService defaultPS;
     private boolean serialEnabled = false;
     private BrowserTools btools;
 
     /**
-     * The run loop will consistently check the spool List and call functions
-     * based on the state of each PrintJob
+     * The run loop waits for job state events posted by the PrintJobs and
+     * their elements and advances each job to its next state. No time is
+     * spent when there is nothing to do.
      */
     public void run() {
 
@@ -93,8 +111,14 @@ public class PrintSpooler implements Runnable {
 
         // This list will be generated on-the-fly instead
         //printerListString = "";
-        // Assigning it allows it to be used as a readiness check (i.e. != null)
-        printerList = findAllPrinters();
+        // Once found, the list can be used as a readiness check (i.e. != null)
+        findAllPrinters();
+        printerRegistry.addListener(new PrinterRegistryListener() {
+            public void printersChanged(List<Printer> added, List<Printer> removed) {
+                btools.notifyBrowser("qzPrintersChanged", new Object[]{getNames(added), getNames(removed)});
+            }
+        });
+        printerRegistry.setRefreshInterval(PrinterRegistry.DEFAULT_REFRESH_INTERVAL);
 
         // Initialize system variables
         running = true;
@@ -102,63 +126,363 @@ public class PrintSpooler implements Runnable {
         logPSFeatures = false;
         endOfDocument = "";
         docsPerSpool = 0;
-        openJobs = 0;
         alternatePrint = false;
         exception = null;
         currentPrinter = null;
-        defaultPS = PrintServiceLookup.lookupDefaultPrintService();
 
-        // Set the loop delay for the spooler
-        int loopDelay = 100;
+        // Retry delay for queued jobs whose printer reports it isn't ready
+        int retryDelay = 100;
         
         // Tell the web browser the applet is ready
         btools.notifyBrowser("qzReady");
         
         // Main loop
         while (running) {
+            PrintJob job;
+            try {
+                if (waitingJobs.isEmpty()) {
+                    job = jobEvents.take();
+                } else {
+                    job = jobEvents.poll(retryDelay, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ex) {
+                LogIt.log(Level.SEVERE, "Print spooler interrupted.", ex);
+                continue;
+            }
+
             synchronized (spool) {
-                if (spool.size() > 0) {
-                    spoolIterator = spool.listIterator();
-                    JSONArray currentQueueInfo = new JSONArray();
-                    while (spoolIterator.hasNext()) {
-
-                        int jobIndex = spoolIterator.nextIndex();
-                        PrintJob job = spoolIterator.next();
-                        PrintJobState jobState = job.getJobState();
-
-                        switch (jobState) {
-                            case STATE_PROCESSING:
-                                // Check if job is processed. This will trigger the PrintJob to check all it's elements and set itself to STATE_PROCESSED if all set
-                                job.isProcessed();
-                                break;
-                            case STATE_PROCESSED:
-                                // Once a job is marked as processed, it's ready to be queued up
-                                job.queue();
-                                break;
-                            case STATE_QUEUED:
-                                // Get Printer Status from the job. If it's ready, go ahead and send the queued job
-                                if (job.getPrinter().ready()) {
-                                    job.print();
-                                }
-                                break;
-                        }
+                // Events can still arrive for jobs that have already finished
+                if (job != null && spool.containsKey(job.getJobId())) {
+                    waitingJobs.remove(job);
+                    advanceJob(job);
+                    if (job.isFinished()) {
+                        finishJob(job);
+                    }
+                }
 
-                        HashMap<String, String> jobInfo = new HashMap<String, String>();
-                        jobInfo.put("id", String.valueOf(jobIndex));
-                        jobInfo.put("title", job.getTitle());
-                        jobInfo.put("state", jobState.name());
-                        jobInfo.put("copies", Integer.toString(job.getCopies()));
-                        currentQueueInfo.put(jobInfo);
+                // Give jobs waiting on their printer another chance
+                if (!waitingJobs.isEmpty()) {
+                    ListIterator<PrintJob> waitingIterator = waitingJobs.listIterator();
+                    while (waitingIterator.hasNext()) {
+                        PrintJob waitingJob = waitingIterator.next();
+                        if (waitingJob.getJobState() != PrintJobState.STATE_QUEUED) {
+                            waitingIterator.remove();
+                        } else if (waitingJob.getPrinter().ready()) {
+                            waitingIterator.remove();
+                            sendJob(waitingJob);
+                        }
                     }
-                    queueInfo = currentQueueInfo;
                 }
+
+                updateQueueInfo();
+            }
+        }
+    }
+
+    /**
+     * Move a job through as many states as it is currently able to go:
+     * PROCESSING to PROCESSED to QUEUED, then hand it to its printer's send
+     * queue. Called from the spooler thread with the spool lock held.
+     *
+     * @param job The job whose state has changed
+     */
+    private void advanceJob(PrintJob job) {
+        switch (job.getJobState()) {
+            case STATE_PROCESSING:
+                // Check if job is processed. This will trigger the PrintJob to check all it's elements and set itself to STATE_PROCESSED if all set
+                job.isProcessed();
+                if (job.getJobState() != PrintJobState.STATE_PROCESSED) {
+                    break;
+                }
+            case STATE_PROCESSED:
+                // Once a job is marked as processed, it's ready to be queued up
+                job.queue();
+                // Get Printer Status from the job. If it's ready, go ahead and send the queued job
+                if (job.getPrinter().ready()) {
+                    sendJob(job);
+                } else {
+                    waitingJobs.add(job);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Hand a queued job to the send queue for its destination. The job is
+     * printed on that queue's thread, so no printer I/O happens while the
+     * spool lock is held.
+     *
+     * @param job The queued job
+     */
+    private void sendJob(PrintJob job) {
+        String destination = job.getDestination();
+        PrinterSendQueue sendQueue = sendQueues.get(destination);
+        if (sendQueue == null || !sendQueue.offer(job)) {
+            sendQueue = new PrinterSendQueue(destination);
+            sendQueue.offer(job);
+            sendQueue.start();
+            sendQueues.put(destination, sendQueue);
+        }
+    }
+
+    /**
+     * Remove a completed or cancelled job from the spool, release its data and
+     * keep only its status record. Called with the spool lock held.
+     *
+     * @param job The finished job
+     */
+    private void finishJob(PrintJob job) {
+        spool.remove(job.getJobId());
+        graphicCache.jobFinished(job.getJobId(), job.getJobState() == PrintJobState.STATE_COMPLETE && !job.isFailed());
+        job.release();
+        finishedJobs.put(job.getJobId(), new FinishedJob(getJobStatus(job)));
+        compactFinishedJobs();
+    }
+
+    /**
+     * Drop the oldest finished job records once there are more than
+     * <code>retainJobs</code> of them and they finished more than
+     * <code>retainTime</code> ago. Called with the spool lock held.
+     */
+    private void compactFinishedJobs() {
+        long cutoff = System.currentTimeMillis() - retainTime;
+        int excess = finishedJobs.size() - retainJobs;
+        Iterator<FinishedJob> iterator = finishedJobs.values().iterator();
+        while (excess > 0 && iterator.hasNext()) {
+            if (iterator.next().finishedAt > cutoff) {
+                break;
             }
+            iterator.remove();
+            excess--;
+        }
+    }
+
+    /**
+     * Build the status record reported in the queue info for a job
+     *
+     * @param job The job
+     * @return A map of the job's id, title, state and copies
+     */
+    private HashMap<String, String> getJobStatus(PrintJob job) {
+        HashMap<String, String> jobInfo = new HashMap<String, String>();
+        jobInfo.put("id", String.valueOf(job.getJobId()));
+        jobInfo.put("title", job.getTitle());
+        jobInfo.put("state", job.getJobState().name());
+        jobInfo.put("copies", Integer.toString(job.getCopies()));
+        return jobInfo;
+    }
+
+    /**
+     * Rebuild the queue info from the spool and the retained finished jobs,
+     * ordered by job id. Called with the spool lock held.
+     */
+    private void updateQueueInfo() {
+        TreeMap<Integer, HashMap<String, String>> jobs = new TreeMap<Integer, HashMap<String, String>>();
+        for (Integer jobId : finishedJobs.keySet()) {
+            jobs.put(jobId, finishedJobs.get(jobId).status);
+        }
+        for (PrintJob job : spool.values()) {
+            jobs.put(job.getJobId(), getJobStatus(job));
+        }
+
+        JSONArray currentQueueInfo = new JSONArray();
+        for (HashMap<String, String> jobInfo : jobs.values()) {
+            currentQueueInfo.put(jobInfo);
+        }
+        queueInfo = currentQueueInfo;
+    }
+
+    /**
+     * Post a job state event to the spooler. PrintJobs call this whenever
+     * their state may have changed outside of the spooler thread.
+     *
+     * @param job The job whose state may have changed
+     */
+    void jobStateChanged(PrintJob job) {
+        jobEvents.offer(job);
+    }
+
+    /**
+     * The status record kept for a job after it completes or is cancelled
+     */
+    private static class FinishedJob {
+
+        final HashMap<String, String> status;
+        final long finishedAt = System.currentTimeMillis();
+
+        FinishedJob(HashMap<String, String> status) {
+            this.status = status;
+        }
+    }
+
+    /**
+     * Get the shared pool used to prepare PrintJobElements
+     *
+     * @return The preparer pool
+     */
+    PrintJobElementPreparerPool getPreparerPool() {
+        return preparerPool;
+    }
+
+    /**
+     * Set the number of worker threads used to prepare PrintJobElements
+     *
+     * @param imageThreads Workers for image conversion
+     * @param ioThreads Workers for file, URL, XML, PDF and RTF elements
+     */
+    public void setPreparerThreads(int imageThreads, int ioThreads) {
+        preparerPool.setThreads(imageThreads, ioThreads);
+    }
+
+    /**
+     * Set how many bytes of converted image commands are kept, so images
+     * appended again with the same settings aren't converted again
+     *
+     * @param maxBytes The cache size, or 0 to convert every image
+     */
+    public void setImageCacheSize(long maxBytes) {
+        preparerPool.getImageCache().setMaxBytes(maxBytes);
+        LogIt.log("Image cache size set to " + Math.max(0, maxBytes) + " bytes");
+    }
+
+    /**
+     * Get the preparer pool's queue depths and timings as a JSONObject
+     *
+     * @return The preparer info JSONObject
+     */
+    public JSONObject getPreparerInfo() {
+        JSONObject info = new JSONObject();
+        try {
+            info.put("imageQueue", preparerPool.getImageQueueDepth());
+            info.put("ioQueue", preparerPool.getIOQueueDepth());
+            info.put("prepared", preparerPool.getPreparedCount());
+            info.put("averagePrepareTime", preparerPool.getAveragePrepareTime());
+            info.put("maxPrepareTime", preparerPool.getMaxPrepareTime());
+            info.put("averageWaitTime", preparerPool.getAverageWaitTime());
+            ImageCommandCache imageCache = preparerPool.getImageCache();
+            info.put("imageCacheHits", imageCache.getHits());
+            info.put("imageCacheMisses", imageCache.getMisses());
+            info.put("imageCacheBytes", imageCache.getTotalBytes());
+        } catch (JSONException ex) {
+            LogIt.log(Level.WARNING, "Could not build preparer info.", ex);
+        }
+        return info;
+    }
+
+    /**
+     * Get the pool of open connections used by printToHost
+     *
+     * @return The host connection pool
+     */
+    HostConnectionPool getHostConnectionPool() {
+        return hostConnectionPool;
+    }
+
+    /**
+     * Get the cache of images stored in each printer's graphic memory
+     *
+     * @return The graphic cache
+     */
+    GraphicCache getGraphicCache() {
+        return graphicCache;
+    }
+
+    /**
+     * Forget which images are stored in printer memory, so they are sent
+     * again the next time they are printed. Use after a printer restarts.
+     *
+     * @param destination The printer name or remote host and port
+     * (<code>host:port</code>), or null for all printers
+     */
+    public void clearGraphicCache(String destination) {
+        if (destination == null) {
+            graphicCache.clear();
+        } else {
+            graphicCache.clear(destination);
+        }
+        LogIt.log("Cleared cached graphics for " + (destination == null ? "all printers" : destination));
+    }
+
+    /**
+     * Set how long printToHost connections are kept open between jobs
+     *
+     * @param idleTimeout Milliseconds, or 0 to close the connection after
+     * each job
+     */
+    public synchronized void setHostIdleTimeout(int idleTimeout) {
+        hostIdleTimeout = idleTimeout;
+        hostConnectionPool.setIdleTimeout(idleTimeout);
+        if (hostTransport != null) {
+            hostTransport.setIdleTimeout(idleTimeout);
+        }
+        LogIt.log("Host connection idle timeout set to " + idleTimeout + " ms");
+    }
+
+    /**
+     * Set how long raw jobs wait for the printer to acknowledge them before
+     * the job is failed
+     *
+     * @param timeout Milliseconds, or 0 to wait indefinitely
+     */
+    public void setRawPrintTimeout(int timeout) {
+        printerRegistry.setRawPrintTimeout(Math.max(0, timeout));
+        LogIt.log("Raw print timeout set to " + Math.max(0, timeout) + " ms");
+    }
+
+    /**
+     * Choose how printToHost jobs are sent. The NIO transport writes to every
+     * host from a single thread and holds back jobs for hosts that aren't
+     * keeping up; otherwise each host's send thread writes through the
+     * blocking connection pool.
+     *
+     * @param useNio true to use the NIO transport
+     */
+    public synchronized void setUseNioTransport(boolean useNio) {
+        this.useNioTransport = useNio;
+        LogIt.log("Host jobs will be sent with the " + (useNio ? "NIO transport" : "connection pool"));
+    }
+
+    /**
+     * Get the printer used for jobs sent to a remote host
+     *
+     * @param jobHost The remote host
+     * @param jobPort The port on the remote host
+     * @return A <code>NetworkPrinter</code> shared by all jobs for the host
+     * when the NIO transport is in use, otherwise a new
+     * <code>RawPrinter</code>
+     */
+    synchronized Printer getHostPrinter(String jobHost, int jobPort) {
+        if (useNioTransport) {
             try {
-                Thread.sleep(loopDelay);
-            } catch (InterruptedException ex) {
-                LogIt.log(Level.SEVERE, "Print spooler interrupted.", ex);
+                if (hostTransport == null) {
+                    hostTransport = new NioHostTransport();
+                    hostTransport.setIdleTimeout(hostIdleTimeout);
+                }
+                String key = jobHost + ":" + jobPort;
+                NetworkPrinter printer = networkPrinters.get(key);
+                if (printer == null) {
+                    printer = new NetworkPrinter(hostTransport, jobHost, jobPort);
+                    networkPrinters.put(key, printer);
+                }
+                return printer;
+            } catch (IOException ex) {
+                LogIt.log(Level.WARNING, "Could not start the NIO transport, using the connection pool.", ex);
+                useNioTransport = false;
             }
         }
+        return new RawPrinter();
+    }
+
+    /**
+     * Close any printToHost connections kept open between jobs
+     */
+    public synchronized void closeHostConnections() {
+        hostConnectionPool.closeAll();
+        if (hostTransport != null) {
+            hostTransport.close();
+            hostTransport = null;
+            networkPrinters.clear();
+        }
     }
 
     /**
@@ -197,9 +521,10 @@ public class PrintSpooler implements Runnable {
      */
     public PrintJob createJob() {
 
-        openJobs += 1;
-
-        currentJob = new PrintJob();
+        synchronized (spool) {
+            currentJob = new PrintJob(this, nextJobId++);
+        }
+        openJobs.add(currentJob);
         
         if (paperSize != null) {
             currentJob.setPaperSize(paperSize);
@@ -212,7 +537,7 @@ public class PrintSpooler implements Runnable {
         currentJob.setAlternatePrinting(alternatePrint);
 
         synchronized (spool) {
-            spool.add(currentJob);
+            spool.put(currentJob.getJobId(), currentJob);
         }
         
         return currentJob;
@@ -242,11 +567,26 @@ public class PrintSpooler implements Runnable {
      * @param imageY The height of the image
      */
     public void appendImage(ByteArrayBuilder imagePath, Charset charset, String lang, int imageX, int imageY) {
+        appendImage(imagePath, charset, lang, imageX, imageY, null);
+    }
+
+    /**
+     * Creates an image PrintJobElement converted with the given options and
+     * adds it to the current print job
+     *
+     * @param imagePath The file path of the image
+     * @param charset The charset of the file path
+     * @param lang The target raw printer language to translate the image to
+     * @param imageX The width of the image
+     * @param imageY The height of the image
+     * @param options The conversion options, or null for the defaults
+     */
+    public void appendImage(ByteArrayBuilder imagePath, Charset charset, String lang, int imageX, int imageY, ImageOptions options) {
         if (currentJob == null) {
             createJob();
         }
 
-        currentJob.appendImage(imagePath, charset, lang, imageX, imageY);
+        currentJob.appendImage(imagePath, charset, lang, imageX, imageY, options);
     }
 
     /**
@@ -416,25 +756,16 @@ public class PrintSpooler implements Runnable {
         }
         lastPrinterName = currentPrinter.getName();
 
-        if (openJobs == 0) {
+        if (openJobs.isEmpty()) {
             LogIt.log(Level.WARNING, "No data has been provided.");
             setException(new NullCommandException("No data has been provided."));
             return false;
-        } else if (openJobs == 1) {
-            currentJob.setPrinter(currentPrinter);
-            currentJob.prepareJob();
-            currentJob = null;
-            openJobs = 0;
-            return true;
         } else {
-            synchronized (spool) {
-                while (openJobs > 0) {
-                    PrintJob job = spool.get(spool.size() - openJobs);
-                    job.setPrinter(currentPrinter);
-                    job.prepareJob();
-                    openJobs -= 1;
-                }
+            for (PrintJob job : openJobs) {
+                job.setPrinter(currentPrinter);
+                job.prepareJob();
             }
+            openJobs.clear();
             currentJob = null;
             return true;
         }
@@ -451,6 +782,7 @@ public class PrintSpooler implements Runnable {
             try {
                 filePrinter.setOutputPath(filePath);
                 currentJob.setPrinter(filePrinter);
+                openJobs.remove(currentJob);
                 currentJob.prepareJob();
             } catch (InvalidFileTypeException ex) {
                 LogIt.log(Level.SEVERE, "Invalid file type.", ex);
@@ -473,6 +805,7 @@ public class PrintSpooler implements Runnable {
         if (currentJob != null) {
             lastPrinterName = "Remote Host";
             currentJob.setHostOutput(jobHost, jobPort);
+            openJobs.remove(currentJob);
             currentJob.prepareJob();
             currentJob = null;
         } else {
@@ -484,13 +817,21 @@ public class PrintSpooler implements Runnable {
     /**
      * Cancel a job
      *
-     * @param jobIndex The index of the job to cancel
+     * @param jobId The id of the job to cancel
      */
-    public void cancelJob(int jobIndex) {
+    public void cancelJob(int jobId) {
+        PrintJob job;
         synchronized (spool) {
-            PrintJob job = spool.get(jobIndex);
+            job = spool.get(jobId);
+        }
+        if (job != null) {
+            openJobs.remove(job);
+            if (job == currentJob) {
+                currentJob = null;
+            }
             job.cancel();
-            spool.set(jobIndex, job);
+        } else {
+            LogIt.log(Level.WARNING, "Job " + jobId + " is not active and cannot be cancelled.");
         }
     }
 
@@ -507,53 +848,53 @@ public class PrintSpooler implements Runnable {
      * Returns a string with the contents of the job data. This is only really
      * useful for Raw data PrintJobs
      *
-     * @param jobIndex The index of the job to get info for
-     * @return A String representation of the job data
+     * @param jobId The id of the job to get info for
+     * @return A String representation of the job data, or an empty String if
+     * the job has finished and its data has been released
      */
-    public String getJobInfo(int jobIndex) {
-        PrintJob job = spool.get(jobIndex);
+    public String getJobInfo(int jobId) {
+        PrintJob job;
+        synchronized (spool) {
+            job = spool.get(jobId);
+        }
+        if (job == null) {
+            LogIt.log(Level.WARNING, "Job " + jobId + " has finished and its data has been released.");
+            return "";
+        }
         String jobInfo = job.getInfo();
         LogIt.log("Job Data: " + jobInfo);
         return jobInfo;
     }
 
     /**
-     * Get a list of all printers current installed and update the local
-     * printerList variable
+     * Set how many finished jobs are kept in the queue info. Finished jobs
+     * only keep their status; their data is released as soon as they finish.
+     * A finished job is dropped once there are more than
+     * <code>retainJobs</code> finished jobs and it finished more than
+     * <code>retainMinutes</code> ago.
+     *
+     * @param retainJobs The number of finished jobs to keep
+     * @param retainMinutes The number of minutes to keep finished jobs for
+     */
+    public void setJobRetention(int retainJobs, int retainMinutes) {
+        synchronized (spool) {
+            this.retainJobs = Math.max(0, retainJobs);
+            this.retainTime = Math.max(0, retainMinutes) * 60000L;
+            compactFinishedJobs();
+            updateQueueInfo();
+        }
+        LogIt.log("Job retention set to " + this.retainJobs + " jobs, " + Math.max(0, retainMinutes) + " minutes");
+    }
+
+    /**
+     * Look up all printers currently installed and update the printer
+     * registry
      *
      * @return Returns an <code>ArrayList</code> containing all of the found
      * <code>Printer</code> objects.
      */
     public ArrayList<Printer> findAllPrinters() {
-
-        LogIt.log("Searching for available printers...");
-        ArrayList<Printer> printers = new ArrayList<Printer>();
-        PrintService[] psList;
-
-        psList = PrintServiceLookup.lookupPrintServices(null, null);
-        for (PrintService ps : psList) {
-            PrintServiceAttributeSet psa = ps.getAttributes();
-
-            //if(!"".equals(printerListString)) {
-            //    printerListString += ",";
-            //}
-            //String printerName = psa.get(PrinterName.class).toString();
-            //printerListString += printerName;
-            Printer printer;
-
-            //if (ps.isDocFlavorSupported(DocFlavor.INPUT_STREAM.POSTSCRIPT)) {
-            //    printer = (PSPrinter) new PSPrinter();
-            //} else {
-                printer = (RawPrinter) new RawPrinter();
-            //}
-
-            printer.setPrintService(ps);
-            printer.setName(((PrinterName)ps.getAttribute(PrinterName.class)).getValue());
-            printers.add(printer);
-        }
-        LogIt.log("Found " + printers.size() + " printers.");
-        return printers;
-
+        return printerRegistry.refresh();
     }
 
     /**
@@ -573,29 +914,45 @@ public class PrintSpooler implements Runnable {
 
     }
 
+    /**
+     * Join printer names into a comma delimited string
+     */
+    private static String getNames(List<Printer> printers) {
+        StringBuilder sb = new StringBuilder();
+        for (Printer printer : printers) {
+            sb.append(sb.length() > 0 ? "," : "").append(printer.getName());
+        }
+        return sb.toString();
+    }
+
     /**
      * Return the <code>Printer</code> Array List
      *
-     * @return <code>ArrayList</code> of <code>Printer</code> objects
+     * @return <code>ArrayList</code> of <code>Printer</code> objects, or null
+     * if the printers haven't been looked up yet
      */
     public ArrayList<Printer> getPrinterList() {
-        return printerList;
+        return printerRegistry.getPrinterList();
     }
 
     /**
-     * Returns the <code>Printer</code> object that contains the OS
-     * default printer
-     * @return 
+     * Get the registry of installed printers
+     *
+     * @return The printer registry
      */
-    private Printer getDefaultPrinter() {
-        ListIterator<Printer> iterator = printerList.listIterator();
-        while (iterator.hasNext()) {
-            Printer printer = iterator.next();
-            if (printer.getPrintService().equals(defaultPS)) {
-                return printer;
-            }
-        }
-        return null;
+    public PrinterRegistry getPrinterRegistry() {
+        return printerRegistry;
+    }
+
+    /**
+     * Set how often the printer list is refreshed in the background
+     *
+     * @param interval Milliseconds between refreshes, or 0 to only refresh
+     * when <code>findAllPrinters</code> is called
+     */
+    public void setPrinterRefreshInterval(int interval) {
+        printerRegistry.setRefreshInterval(interval);
+        LogIt.log("Printer refresh interval set to " + interval + " ms");
     }
 
     /**
@@ -607,47 +964,11 @@ public class PrintSpooler implements Runnable {
      */
     public Printer findPrinter(String printerName) {
 
-        currentPrinter = null;
-
         // If printer name is null, get default printer
         if (printerName == null) {
-            currentPrinter = getDefaultPrinter();
+            currentPrinter = printerRegistry.getDefaultPrinter();
         } else {
-            // Do a 3 pass compare to match the printer. Look for an exact match
-            // then a match containing the string, then a lowercase match 
-            // containing the string
-
-            // First Pass - exact match
-            ListIterator<Printer> exactMatch = printerList.listIterator();
-            while (exactMatch.hasNext()) {
-                Printer printer = exactMatch.next();
-                if (printer.getName().equals(printerName)) {
-                    currentPrinter = printer;
-                    break;
-                }
-            }
-            // Second Pass (if needed) - contains match
-            if (currentPrinter == null) {
-                ListIterator<Printer> containsMatch = printerList.listIterator();
-                while (containsMatch.hasNext()) {
-                    Printer printer = containsMatch.next();
-                    if (printer.getName().indexOf(printerName) != -1) {
-                        currentPrinter = printer;
-                        break;
-                    }
-                }
-            }
-            // Third Pass (if needed) - lowercase contains match
-            if (currentPrinter == null) {
-                ListIterator<Printer> containsMatch = printerList.listIterator();
-                while (containsMatch.hasNext()) {
-                    Printer printer = containsMatch.next();
-                    if (printer.getName().toLowerCase().indexOf(printerName.toLowerCase()) != -1) {
-                        currentPrinter = printer;
-                        break;
-                    }
-                }
-            }
+            currentPrinter = printerRegistry.findPrinter(printerName);
         }
 
         if (currentPrinter != null) {
@@ -665,7 +986,7 @@ public class PrintSpooler implements Runnable {
      * default printer if a negative value is specified.
      */
     public void setPrinter(int printerIndex) {
-        currentPrinter = printerIndex >= 0 ? printerList.get(printerIndex) : getDefaultPrinter();
+        currentPrinter = printerIndex >= 0 ? getPrinterList().get(printerIndex) : printerRegistry.getDefaultPrinter();
         LogIt.log("Selecting " + (printerIndex >= 0 ? "printer " + printerIndex + ": \""
                         : " default printer \"") + currentPrinter.getName() + "\".");
     }
@@ -944,11 +1265,10 @@ public class PrintSpooler implements Runnable {
     }
 
     /**
-     * closePort closes the currently open port. A port name is provided but is
-     * only used in the log. Since only one port can be open at a time,
-     * closePort does not require you to specify the correct port.
+     * closePort closes the named port. If no port name is given every open
+     * port is closed.
      *
-     * @param portName The name of the port to close. Only used in log.
+     * @param portName The name of the port to close
      */
     public void closePort(String portName) {
         if (serialEnabled) {
@@ -959,11 +1279,10 @@ public class PrintSpooler implements Runnable {
     }
 
     /**
-     * closePort closes the currently open port. A port name is provided but is
-     * only used in the log. Since only one port can be open at a time,
-     * closePort does not require you to specify the correct port.
+     * closePort closes the named port. If no port name is given every open
+     * port is closed.
      *
-     * @param portName The name of the port to close. Only used in log.
+     * @param portName The name of the port to close
      * @param warnClosed Warn the user if the port is already closed
      */
     public void closePort(String portName, boolean warnClosed) {
@@ -987,6 +1306,21 @@ public class PrintSpooler implements Runnable {
         }
     }
 
+    /**
+     * Set the character to mark the beginning of returned serial data on an
+     * open port.
+     *
+     * @param portName The name of the port
+     * @param serialBegin The beginning character.
+     */
+    public void setSerialBegin(String portName, ByteArrayBuilder serialBegin) {
+        if (serialEnabled) {
+            serialPrinter.setSerialBegin(portName, serialBegin);
+        } else {
+            LogIt.log(Level.WARNING, "Serial functionality has been disabled.");
+        }
+    }
+
     /**
      * Set the character to mark the ending of returned serial data.
      *
@@ -1001,6 +1335,51 @@ public class PrintSpooler implements Runnable {
 
     }
 
+    /**
+     * Set the character to mark the ending of returned serial data on an
+     * open port.
+     *
+     * @param portName The name of the port
+     * @param serialEnd The ending character.
+     */
+    public void setSerialEnd(String portName, ByteArrayBuilder serialEnd) {
+        if (serialEnabled) {
+            serialPrinter.setSerialEnd(portName, serialEnd);
+        } else {
+            LogIt.log(Level.WARNING, "Serial functionality has been disabled.");
+        }
+    }
+
+    /**
+     * Frame returned serial data by a length prefix instead of the begin and
+     * end characters.
+     *
+     * @param lengthBytes The size of the length prefix: 1, 2 or 4, or 0 for
+     * the begin and end characters
+     */
+    public void setSerialLengthPrefix(int lengthBytes) {
+        if (serialEnabled) {
+            serialPrinter.setSerialLengthPrefix(lengthBytes);
+        } else {
+            LogIt.log(Level.WARNING, "Serial functionality has been disabled.");
+        }
+    }
+
+    /**
+     * Frame returned serial data on an open port by a length prefix.
+     *
+     * @param portName The name of the port
+     * @param lengthBytes The size of the length prefix: 1, 2 or 4, or 0 for
+     * the begin and end characters
+     */
+    public void setSerialLengthPrefix(String portName, int lengthBytes) {
+        if (serialEnabled) {
+            serialPrinter.setSerialLengthPrefix(portName, lengthBytes);
+        } else {
+            LogIt.log(Level.WARNING, "Serial functionality has been disabled.");
+        }
+    }
+
     /**
      * Sets the properties for communicating with serial ports.
      *
@@ -1018,6 +1397,24 @@ public class PrintSpooler implements Runnable {
         }
     }
 
+    /**
+     * Sets the properties for communicating with an open port.
+     *
+     * @param portName The name of the port
+     * @param baud
+     * @param dataBits
+     * @param stopBits
+     * @param parity
+     * @param flowControl
+     */
+    public void setSerialProperties(String portName, String baud, String dataBits, String stopBits, String parity, String flowControl) {
+        if (serialEnabled) {
+            serialPrinter.setSerialProperties(portName, baud, dataBits, stopBits, parity, flowControl);
+        } else {
+            LogIt.log(Level.WARNING, "Serial functionality has been disabled.");
+        }
+    }
+
     /**
      * Send serial data to the opened port.
      *
@@ -1031,6 +1428,20 @@ public class PrintSpooler implements Runnable {
         }
     }
 
+    /**
+     * Send serial data to an open port.
+     *
+     * @param portName The name of the port, or empty for the port opened last
+     * @param serialData A string of the data to send.
+     */
+    public void sendSerialData(String portName, String serialData) {
+        if (serialEnabled) {
+            serialPrinter.send(portName, serialData);
+        } else {
+            LogIt.log(Level.WARNING, "Serial functionality has been disabled.");
+        }
+    }
+
     /**
      * Get any returned serial data.
      *
@@ -1045,6 +1456,21 @@ public class PrintSpooler implements Runnable {
         }
     }
 
+    /**
+     * Get any returned serial data from an open port.
+     *
+     * @param portName The name of the port, or empty for the port opened last
+     * @return The returned data
+     */
+    public String getReturnData(String portName) {
+        if (serialEnabled) {
+            return serialPrinter.getReturnData(portName);
+        } else {
+            LogIt.log(Level.WARNING, "Serial functionality has been disabled.");
+            return "";
+        }
+    }
+
     /**
      * Set the current exception. This set of functions is used to share
      * exception information with the JavaScript layer
@@ -99,6 +99,16 @@ public interface Printer {
      * @param jobTitle The new title
      */
     public abstract void setJobTitle(String jobTitle);
+    
+    /**
+     * Asks the printer to make <code>copies</code> copies of the next raw
+     * job itself, so the data only has to be sent once.
+     * 
+     * @param copies The number of copies
+     * @return true if the printer will make the copies, false if the data
+     * must be sent once per copy
+     */
+    public abstract boolean setCopies(int copies);
 
     
     
@@ -0,0 +1,266 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import javax.print.PrintService;
+import javax.print.PrintServiceLookup;
+import javax.print.attribute.standard.PrinterName;
+
+/**
+ * PrinterRegistry keeps the list of installed printers and an index of them
+ * by name. Looking up print services can take seconds on servers with many
+ * queues, so the list is refreshed on a background thread and lookups only
+ * ever read the last refresh's results. A <code>Printer</code> keeps its
+ * identity across refreshes for as long as its print service exists.
+ */
+public class PrinterRegistry {
+
+    public static final int DEFAULT_REFRESH_INTERVAL = 60000;
+
+    private final CopyOnWriteArrayList<PrinterRegistryListener> listeners = new CopyOnWriteArrayList<PrinterRegistryListener>();
+    private volatile Snapshot snapshot;
+    private volatile long rawPrintTimeout = RawPrinter.DEFAULT_COMPLETION_TIMEOUT;
+    private Timer refresher;
+
+    /**
+     * The printers found by one refresh, indexed by name. Never changed once
+     * published, except for the cache of partial name matches.
+     */
+    private static class Snapshot {
+
+        final ArrayList<Printer> printers;
+        final HashMap<String, Printer> byName = new HashMap<String, Printer>();
+        final ConcurrentHashMap<String, Printer> matches = new ConcurrentHashMap<String, Printer>();
+        final Printer defaultPrinter;
+
+        Snapshot(ArrayList<Printer> printers, PrintService defaultService) {
+            this.printers = printers;
+            Printer found = null;
+            for (Printer printer : printers) {
+                if (!byName.containsKey(printer.getName())) {
+                    byName.put(printer.getName(), printer);
+                }
+                if (found == null && defaultService != null && defaultService.equals(printer.getPrintService())) {
+                    found = printer;
+                }
+            }
+            defaultPrinter = found;
+        }
+    }
+
+    /**
+     * Look up the installed print services and update the printer list.
+     * Listeners are told about any printers that were added or removed.
+     *
+     * @return The updated printer list
+     */
+    public synchronized ArrayList<Printer> refresh() {
+        LogIt.log("Searching for available printers...");
+        long start = System.currentTimeMillis();
+        PrintService[] psList = PrintServiceLookup.lookupPrintServices(null, null);
+        PrintService defaultService = PrintServiceLookup.lookupDefaultPrintService();
+
+        Snapshot previous = snapshot;
+        HashMap<String, Printer> remaining = new HashMap<String, Printer>();
+        if (previous != null) {
+            remaining.putAll(previous.byName);
+        }
+
+        ArrayList<Printer> printers = new ArrayList<Printer>(psList.length);
+        ArrayList<Printer> added = new ArrayList<Printer>();
+        for (PrintService ps : psList) {
+            PrinterName printerName = (PrinterName) ps.getAttribute(PrinterName.class);
+            String name = printerName == null ? ps.getName() : printerName.getValue();
+
+            Printer printer = remaining.remove(name);
+            if (printer == null) {
+                RawPrinter rawPrinter = new RawPrinter();
+                rawPrinter.setCompletionTimeout(rawPrintTimeout);
+                printer = rawPrinter;
+                printer.setName(name);
+                added.add(printer);
+            }
+            if (!ps.equals(printer.getPrintService())) {
+                printer.setPrintService(ps);
+            }
+            printers.add(printer);
+        }
+        ArrayList<Printer> removed = new ArrayList<Printer>(remaining.values());
+
+        snapshot = new Snapshot(printers, defaultService);
+        LogIt.log("Found " + printers.size() + " printers in " + (System.currentTimeMillis() - start) + " ms.");
+
+        if (previous != null && (!added.isEmpty() || !removed.isEmpty())) {
+            LogIt.log(added.size() + " printers added, " + removed.size() + " printers removed.");
+            for (PrinterRegistryListener listener : listeners) {
+                try {
+                    listener.printersChanged(added, removed);
+                } catch (RuntimeException ex) {
+                    LogIt.log(Level.WARNING, "Printer registry listener failed.", ex);
+                }
+            }
+        }
+        return printers;
+    }
+
+    /**
+     * Refresh the printer list in the background every
+     * <code>interval</code> milliseconds
+     *
+     * @param interval Milliseconds between refreshes, or 0 to stop
+     * refreshing
+     */
+    public synchronized void setRefreshInterval(int interval) {
+        if (refresher != null) {
+            refresher.cancel();
+            refresher = null;
+        }
+        if (interval > 0) {
+            refresher = new Timer("qz-printer-refresh", true);
+            refresher.schedule(new TimerTask() {
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (RuntimeException ex) {
+                        LogIt.log(Level.WARNING, "Could not refresh printer list.", ex);
+                    }
+                }
+            }, interval, interval);
+        }
+    }
+
+    /**
+     * Stop refreshing the printer list in the background
+     */
+    public void stop() {
+        setRefreshInterval(0);
+    }
+
+    /**
+     * Add a listener to be told about printers being added or removed
+     *
+     * @param listener The listener
+     */
+    public void addListener(PrinterRegistryListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener added with <code>addListener</code>
+     *
+     * @param listener The listener
+     */
+    public void removeListener(PrinterRegistryListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Set the completion timeout of raw printers found now and in later
+     * refreshes
+     *
+     * @param timeout Milliseconds, or 0 to wait indefinitely
+     */
+    public void setRawPrintTimeout(long timeout) {
+        rawPrintTimeout = timeout;
+        Snapshot current = snapshot;
+        if (current != null) {
+            for (Printer printer : current.printers) {
+                if (printer instanceof RawPrinter) {
+                    ((RawPrinter) printer).setCompletionTimeout(timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the printers found by the last refresh. The list must not be
+     * modified.
+     *
+     * @return The printer list, or null if the printers haven't been looked
+     * up yet
+     */
+    public ArrayList<Printer> getPrinterList() {
+        Snapshot current = snapshot;
+        return current == null ? null : current.printers;
+    }
+
+    /**
+     * Get the OS default printer
+     *
+     * @return The default printer, or null if there isn't one
+     */
+    public Printer getDefaultPrinter() {
+        Snapshot current = snapshot;
+        return current == null ? null : current.defaultPrinter;
+    }
+
+    /**
+     * Search for a printer by name. An exact match is preferred, then the
+     * first printer whose name contains <code>printerName</code>, then the
+     * first whose name contains it ignoring case. Partial matches are
+     * remembered until the next refresh.
+     *
+     * @param printerName The name (or partial name) of the printer to find
+     * @return The printer, or null if none matches
+     */
+    public Printer findPrinter(String printerName) {
+        Snapshot current = snapshot;
+        if (current == null || printerName == null) {
+            return null;
+        }
+
+        Printer printer = current.byName.get(printerName);
+        if (printer == null) {
+            printer = current.matches.get(printerName);
+        }
+        if (printer == null) {
+            printer = findPartialMatch(current.printers, printerName);
+            if (printer != null) {
+                current.matches.put(printerName, printer);
+            }
+        }
+        return printer;
+    }
+
+    private static Printer findPartialMatch(List<Printer> printers, String printerName) {
+        for (Printer printer : printers) {
+            if (printer.getName().indexOf(printerName) != -1) {
+                return printer;
+            }
+        }
+        String lowerName = printerName.toLowerCase();
+        for (Printer printer : printers) {
+            if (printer.getName().toLowerCase().indexOf(lowerName) != -1) {
+                return printer;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.List;
+
+/**
+ * A PrinterRegistryListener is told when a refresh of the
+ * <code>PrinterRegistry</code> finds printers that have been installed or
+ * removed.
+ */
+public interface PrinterRegistryListener {
+
+    /**
+     * Called after a refresh that changed the printer list
+     *
+     * @param added Printers that weren't found by the previous refresh
+     * @param removed Printers that are no longer found
+     */
+    public abstract void printersChanged(List<Printer> added, List<Printer> removed);
+
+}
@@ -0,0 +1,116 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * PrinterSendQueue sends queued PrintJobs to a single printer, one at a time
+ * and in the order they were added. Each printer gets its own queue and
+ * sender thread so a slow or offline printer only holds up its own jobs.
+ * The sender thread exits after sitting idle and the spooler creates a new
+ * queue the next time a job is sent to that printer.
+ */
+public class PrinterSendQueue implements Runnable {
+
+    private static final long IDLE_TIMEOUT = 60000;
+
+    private final String printerName;
+    private final LinkedBlockingQueue<PrintJob> jobs = new LinkedBlockingQueue<PrintJob>();
+    private boolean stopped = false;
+
+    PrinterSendQueue(String printerName) {
+        this.printerName = printerName;
+    }
+
+    /**
+     * Start the sender thread for this queue
+     */
+    void start() {
+        Thread sender = new Thread(this, "qz-send-" + printerName);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Add a job to the end of the queue.
+     *
+     * @param job The job to send
+     * @return false if the sender thread has already stopped and the job
+     * must be given to a new queue
+     */
+    synchronized boolean offer(PrintJob job) {
+        if (stopped) {
+            return false;
+        }
+        jobs.add(job);
+        return true;
+    }
+
+    /**
+     * @return Number of jobs waiting to be sent
+     */
+    public int size() {
+        return jobs.size();
+    }
+
+    /**
+     * @return The name of the printer this queue sends to
+     */
+    public String getPrinterName() {
+        return printerName;
+    }
+
+    public void run() {
+        while (true) {
+            PrintJob job;
+            try {
+                job = jobs.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                LogIt.log(Level.WARNING, "Send queue for \"" + printerName + "\" interrupted.", ex);
+                continue;
+            }
+
+            if (job == null) {
+                synchronized (this) {
+                    if (jobs.isEmpty()) {
+                        stopped = true;
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            if (job.getJobState() == PrintJobState.STATE_CANCELLED) {
+                continue;
+            }
+
+            try {
+                job.print();
+            } catch (RuntimeException ex) {
+                LogIt.log(Level.SEVERE, "Could not send job to \"" + printerName + "\".", ex);
+            }
+        }
+    }
+}
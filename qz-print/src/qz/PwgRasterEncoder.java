@@ -0,0 +1,211 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * PwgRasterEncoder encodes a packed monochrome image as a one page PWG
+ * raster (PWG 5102.4) or Apple raster (URF) document, the formats driverless
+ * IPP Everywhere and AirPrint printers accept. PWG pages are sent as 1 bit
+ * black; URF has no 1 bit form, so pages are sent as 8 bit gray. Rows are
+ * compressed the same way in both: identical rows are counted once, and each
+ * row is run length encoded with a count of 0 to 127 repeating the next
+ * pixel n + 1 times and 129 to 255 starting 257 - n (2 to 128) literal
+ * pixels.
+ */
+public class PwgRasterEncoder {
+
+    private static final int PWG_HEADER_LENGTH = 1796;
+    private static final int PWG_COLOR_SPACE_BLACK = 3;
+    private static final int URF_COLOR_SPACE_GRAY = 0;
+
+    /**
+     * Encodes a packed image as PWG raster, 1 for black
+     *
+     * @param packed The image, <code>bytesPerRow</code> bytes per row
+     * @param bytesPerRow The length of one row
+     * @param width The width of the image in dots
+     * @param dpi The printer resolution
+     * @return The PWG raster document
+     */
+    public static byte[] encodePwg(byte[] packed, int bytesPerRow, int width, int dpi) {
+        int height = bytesPerRow == 0 ? 0 : packed.length / bytesPerRow;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(packed.length / 4 + PWG_HEADER_LENGTH + 4);
+        out.write('R');
+        out.write('a');
+        out.write('S');
+        out.write('2');
+
+        byte[] header = new byte[PWG_HEADER_LENGTH];
+        putString(header, 0, "PwgRaster");
+        putInt(header, 276, dpi);                       // HWResolution
+        putInt(header, 280, dpi);
+        putInt(header, 340, 1);                         // NumCopies
+        putInt(header, 352, width * 72 / dpi);          // PageSize in points
+        putInt(header, 356, height * 72 / dpi);
+        putInt(header, 372, width);
+        putInt(header, 376, height);
+        putInt(header, 384, 1);                         // BitsPerColor
+        putInt(header, 388, 1);                         // BitsPerPixel
+        putInt(header, 392, bytesPerRow);
+        putInt(header, 400, PWG_COLOR_SPACE_BLACK);
+        putInt(header, 420, 1);                         // NumColors
+        putInt(header, 452, 1);                         // TotalPageCount
+        putInt(header, 456, 1);                         // CrossFeedTransform
+        putInt(header, 460, 1);                         // FeedTransform
+        putInt(header, 472, width);                     // ImageBoxRight
+        putInt(header, 476, height);                    // ImageBoxBottom
+        out.write(header, 0, header.length);
+
+        // Below 8 bits per pixel the run length unit is a byte
+        writeRows(out, packed, bytesPerRow, height, 0);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes a packed image as Apple raster, 1 for black
+     *
+     * @param packed The image, <code>bytesPerRow</code> bytes per row
+     * @param bytesPerRow The length of one row
+     * @param width The width of the image in dots
+     * @param dpi The printer resolution
+     * @return The URF document
+     */
+    public static byte[] encodeUrf(byte[] packed, int bytesPerRow, int width, int dpi) {
+        int height = bytesPerRow == 0 ? 0 : packed.length / bytesPerRow;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(packed.length / 2 + 44);
+        byte[] header = new byte[12 + 32];
+        putString(header, 0, "UNIRAST");
+        putInt(header, 8, 1);                           // Pages
+        header[12] = 8;                                 // Bits per pixel
+        header[13] = URF_COLOR_SPACE_GRAY;
+        header[14] = 1;                                 // Simplex
+        header[15] = 4;                                 // Normal quality
+        putInt(header, 24, width);
+        putInt(header, 28, height);
+        putInt(header, 32, dpi);
+        out.write(header, 0, header.length);
+
+        writeRows(out, packed, bytesPerRow, height, width);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes rows with a repeat count before each distinct row, then the
+     * row's pixels run length encoded. Repeats are found on the packed rows;
+     * when <code>grayWidth</code> is set, each distinct row is expanded to
+     * that many 8 bit gray pixels before it is encoded.
+     */
+    private static void writeRows(ByteArrayOutputStream out, byte[] packed, int bytesPerRow, int height, int grayWidth) {
+        byte[] gray = grayWidth > 0 ? new byte[grayWidth] : null;
+        // Single pixels take two bytes, so a row can grow
+        byte[] encoded = new byte[(gray != null ? grayWidth : bytesPerRow) * 2];
+        int y = 0;
+        while (y < height) {
+            int repeat = 1;
+            while (y + repeat < height && repeat < 256 && sameRow(packed, y, y + repeat, bytesPerRow)) {
+                repeat++;
+            }
+            out.write(repeat - 1);
+            int length;
+            if (gray != null) {
+                expandRow(packed, y * bytesPerRow, gray);
+                length = packRow(gray, 0, grayWidth, encoded);
+            } else {
+                length = packRow(packed, y * bytesPerRow, bytesPerRow, encoded);
+            }
+            out.write(encoded, 0, length);
+            y += repeat;
+        }
+    }
+
+    /**
+     * Expands one packed row to one byte per pixel, 0 for black and 255 for
+     * white
+     */
+    private static void expandRow(byte[] packed, int offset, byte[] gray) {
+        for (int x = 0; x < gray.length; x++) {
+            boolean black = (packed[offset + (x >> 3)] & (0x80 >> (x & 7))) != 0;
+            gray[x] = black ? 0 : (byte) 0xFF;
+        }
+    }
+
+    private static boolean sameRow(byte[] data, int a, int b, int rowLength) {
+        int i = a * rowLength;
+        int j = b * rowLength;
+        for (int k = 0; k < rowLength; k++) {
+            if (data[i + k] != data[j + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Run length encodes one row
+     *
+     * @return the encoded length
+     */
+    static int packRow(byte[] data, int offset, int length, byte[] out) {
+        int o = 0;
+        int i = 0;
+        while (i < length) {
+            int run = 1;
+            while (i + run < length && run < 128 && data[offset + i + run] == data[offset + i]) {
+                run++;
+            }
+            if (run > 1 || i + 1 == length
+                    || (i + 2 < length && data[offset + i + 1] == data[offset + i + 2])) {
+                // A single pixel can't be a literal, send it as a run of one
+                out[o++] = (byte) (run - 1);
+                out[o++] = data[offset + i];
+                i += run;
+                continue;
+            }
+            int start = i;
+            while (i < length && i - start < 128) {
+                if (i + 1 < length && data[offset + i] == data[offset + i + 1]) {
+                    break;
+                }
+                i++;
+            }
+            out[o++] = (byte) (257 - (i - start));
+            System.arraycopy(data, offset + start, out, o, i - start);
+            o += i - start;
+        }
+        return o;
+    }
+
+    private static void putString(byte[] header, int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            header[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+    private static void putInt(byte[] header, int offset, int value) {
+        header[offset] = (byte) (value >>> 24);
+        header[offset + 1] = (byte) (value >>> 16);
+        header[offset + 2] = (byte) (value >>> 8);
+        header[offset + 3] = (byte) value;
+    }
+}
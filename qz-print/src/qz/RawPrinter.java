@@ -22,12 +22,13 @@
 package qz;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.Socket;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import javax.print.DocFlavor;
 import javax.print.DocPrintJob;
@@ -37,9 +38,8 @@ import javax.print.SimpleDoc;
 import javax.print.attribute.DocAttributeSet;
 import javax.print.attribute.HashPrintRequestAttributeSet;
 import javax.print.attribute.PrintRequestAttributeSet;
+import javax.print.attribute.standard.Copies;
 import javax.print.attribute.standard.JobName;
-import javax.print.event.PrintJobEvent;
-import javax.print.event.PrintJobListener;
 
 /**
  * RawPrinter represents a printer that can accept raw data such as a receipt
@@ -49,60 +49,61 @@ import javax.print.event.PrintJobListener;
  */
 public class RawPrinter implements Printer {
 
+    public static final long DEFAULT_COMPLETION_TIMEOUT = 60000;
+
     private String name;
     private PrintService ps;
-    private boolean isFinished;
-    private final DocFlavor docFlavor = DocFlavor.BYTE_ARRAY.AUTOSENSE;;
+    private volatile long completionTimeout = DEFAULT_COMPLETION_TIMEOUT;
+    private final DocFlavor docFlavor = DocFlavor.BYTE_ARRAY.AUTOSENSE;
+    private final DocFlavor streamFlavor = DocFlavor.INPUT_STREAM.AUTOSENSE;
     private DocAttributeSet docAttr;
     private final PrintRequestAttributeSet reqAttr = new HashPrintRequestAttributeSet();
     private String jobTitle;
+    private int copies = 1;
     
     public String getName() {
         return name;
     }
 
     public void printRaw(ByteArrayBuilder data) throws PrintException {
+        awaitCompletion(submitRaw(data));
+    }
+    
+    /**
+     * The flavor raw data is submitted with: a stream when the service
+     * supports it, otherwise a byte array
+     * 
+     * @return The flavor used by <code>submitRaw</code>
+     */
+    private DocFlavor getSubmitFlavor() {
+        return ps.isDocFlavorSupported(streamFlavor) ? streamFlavor : docFlavor;
+    }
+    
+    /**
+     * Hands raw data to the print service without waiting for the printer to
+     * acknowledge it. The returned future completes when the printer has
+     * received the job, or the job fails or is cancelled.
+     * 
+     * @param data The raw data to send
+     * @return The job's completion
+     */
+    public PrintJobCompletion submitRaw(ByteArrayBuilder data) {
         
-        SimpleDoc doc = new SimpleDoc(data.getByteArray(), docFlavor, docAttr);
+        // Stream the data when the service allows it so the job is never
+        // copied into one contiguous array
+        SimpleDoc doc;
+        if (getSubmitFlavor() == streamFlavor) {
+            doc = new SimpleDoc(data.getInputStream(), streamFlavor, docAttr);
+        } else {
+            doc = new SimpleDoc(data.getByteArray(), docFlavor, docAttr);
+        }
         
         reqAttr.add(new JobName(jobTitle, Locale.getDefault()));
+        reqAttr.add(new Copies(copies));
+        // Copies only apply to the job they were set for
+        copies = 1;
         DocPrintJob pj = ps.createPrintJob();
-        pj.addPrintJobListener(new PrintJobListener() {
-            //@Override //JDK 1.6
-            public void printDataTransferCompleted(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished = true;
-            }
-
-            //@Override //JDK 1.6
-            public void printJobCompleted(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished = true;
-            }
-
-            //@Override //JDK 1.6
-            public void printJobFailed(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished = true;
-            }
-
-            //@Override //JDK 1.6
-            public void printJobCanceled(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished = true;
-            }
-
-            //@Override //JDK 1.6
-            public void printJobNoMoreEvents(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished = true;
-            }
-
-            //@Override //JDK 1.6
-            public void printJobRequiresAttention(PrintJobEvent pje) {
-                LogIt.log(pje);
-            }
-        });
+        PrintJobCompletion completion = new PrintJobCompletion(pj);
 
         LogIt.log("Sending print job to printer: \"" + ps.getName() + "\"");
         
@@ -115,18 +116,50 @@ public class RawPrinter implements Printer {
                 LogIt.log(Level.INFO, "Browser security seems to be blocking the print operation."
                         + "  Please trust this applet via browser settings.");
             }
+            completion.fail(ex);
         }
 
-        while (!isFinished) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException ex) {
-                LogIt.log(Level.SEVERE, "Raw print process interrupted.", ex);
+        return completion;
+    }
+    
+    /**
+     * Waits for a job returned by <code>submitRaw</code> to be received by
+     * the printer, up to the completion timeout.
+     * 
+     * @param completion The job's completion
+     * @throws PrintException If the job failed or wasn't acknowledged in time
+     */
+    public void awaitCompletion(PrintJobCompletion completion) throws PrintException {
+        try {
+            if (completionTimeout > 0) {
+                completion.get(completionTimeout, TimeUnit.MILLISECONDS);
+            } else {
+                completion.get();
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof PrintException) {
+                throw (PrintException) ex.getCause();
             }
+            throw new PrintException(ex);
+        } catch (TimeoutException ex) {
+            throw new PrintException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PrintException(ex);
         }
 
         LogIt.log("Print job received by printer: \"" + ps.getName() + "\"");
     }
+    
+    /**
+     * Sets how long <code>printRaw</code> waits for the printer to
+     * acknowledge a job
+     * 
+     * @param completionTimeout Milliseconds, or 0 to wait indefinitely
+     */
+    public void setCompletionTimeout(long completionTimeout) {
+        this.completionTimeout = Math.max(0, completionTimeout);
+    }
 
     public void printAlternate(ByteArrayBuilder data) throws PrintException {
         File tmpFile = new File("/tmp/qz-spool-" + System.currentTimeMillis());
@@ -150,23 +183,23 @@ public class RawPrinter implements Printer {
     }
     
     /**
-     * printToHost sends the raw data to a remote host.
+     * printToHost sends the raw data to a remote host over a pooled
+     * connection, so consecutive jobs to the same host reuse one connection.
      * 
      * @param data The data to send
      * @param jobHost The target host
      * @param jobPort The port on the target machine
+     * @param connections The pool to take the connection from
+     * @throws PrintException If the data couldn't be sent
      */
-    public void printToHost(ByteArrayBuilder data, String jobHost, int jobPort) {
+    public void printToHost(ByteArrayBuilder data, String jobHost, int jobPort, HostConnectionPool connections) throws PrintException {
         LogIt.log("Printing to host " + jobHost + ":" + jobPort);
         
         try {
-            Socket socket = new Socket(jobHost, jobPort);
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            out.write(data.getByteArray());
-            socket.close();
+            connections.send(data, jobHost, jobPort);
         }
         catch (IOException ex) {
-            LogIt.log(Level.SEVERE, "Could not print to host.", ex);
+            throw new PrintException(ex);
         }
         
     }
@@ -195,6 +228,19 @@ public class RawPrinter implements Printer {
         this.jobTitle = jobTitle;
     }
     
+    public boolean setCopies(int copies) {
+        this.copies = 1;
+        if (copies < 2) {
+            return true;
+        }
+        if (ps == null || !ps.isAttributeCategorySupported(Copies.class)
+                || !ps.isAttributeValueSupported(new Copies(copies), getSubmitFlavor(), reqAttr)) {
+            return false;
+        }
+        this.copies = copies;
+        return true;
+    }
+    
     /**
      * processStream provides a BufferedReader for alternate printing
      * 
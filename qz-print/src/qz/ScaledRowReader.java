@@ -0,0 +1,169 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.Arrays;
+
+/**
+ * ScaledRowReader reads an image resized to a given width and height. Each
+ * output pixel is the average of the block of source pixels it covers, so
+ * downscaling keeps thin lines and gray areas roughly as dark as they were,
+ * and upscaling repeats pixels. Rows are scaled as they are read, so the
+ * scaled image is never held in memory. Different rows may be read from
+ * several threads at once unless the source is sequential; each thread
+ * keeps its own buffers, and its last scaled row so rows repeated when
+ * upscaling aren't read and averaged again.
+ */
+public class ScaledRowReader implements ImageRowSource {
+
+    private final ImageRowSource source;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int width;
+    private final int height;
+    private final int[] columnStart;
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * Creates a reader for <code>source</code> scaled to
+     * <code>width</code> by <code>height</code>
+     *
+     * @param source The image to read
+     * @param width The scaled width
+     * @param height The scaled height
+     */
+    public ScaledRowReader(ImageRowSource source, int width, int height) {
+        this.source = source;
+        this.sourceWidth = source.getWidth();
+        this.sourceHeight = source.getHeight();
+        this.width = width;
+        this.height = height;
+
+        // Source columns covered by each scaled column, at least one each
+        columnStart = new int[width + 1];
+        for (int x = 0; x <= width; x++) {
+            columnStart[x] = (int) ((long) x * sourceWidth / width);
+        }
+    }
+
+    /**
+     * @return the scaled width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the scaled height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if the source must be read in order
+     */
+    public boolean isSequential() {
+        return source.isSequential();
+    }
+
+    /**
+     * Reads one row of the scaled image as ARGB pixels
+     *
+     * @param y The scaled row to read
+     * @param argb Receives the pixels, must hold at least the scaled width
+     */
+    public void readRow(int y, int[] argb) {
+        int fromRow = (int) ((long) y * sourceHeight / height);
+        int toRow = Math.max(fromRow + 1, (int) ((long) (y + 1) * sourceHeight / height));
+
+        Scratch s = scratch.get();
+        if (fromRow == s.fromRow && toRow == s.toRow) {
+            // Same source rows as the last row, as when upscaling
+            System.arraycopy(s.scaled, 0, argb, 0, width);
+            return;
+        }
+
+        // Colors are weighted by alpha so transparent pixels don't darken
+        // the average
+        long[] a = s.a;
+        long[] r = s.r;
+        long[] g = s.g;
+        long[] b = s.b;
+        int[] row = s.row;
+        Arrays.fill(a, 0);
+        Arrays.fill(r, 0);
+        Arrays.fill(g, 0);
+        Arrays.fill(b, 0);
+        for (int sy = fromRow; sy < toRow; sy++) {
+            source.readRow(sy, row);
+            for (int x = 0; x < width; x++) {
+                int from = columnStart[x];
+                int to = Math.max(from + 1, columnStart[x + 1]);
+                for (int sx = from; sx < to; sx++) {
+                    int p = row[sx];
+                    int alpha = p >>> 24;
+                    a[x] += alpha;
+                    r[x] += ((p >> 16) & 0xFF) * alpha;
+                    g[x] += ((p >> 8) & 0xFF) * alpha;
+                    b[x] += (p & 0xFF) * alpha;
+                }
+            }
+        }
+
+        for (int x = 0; x < width; x++) {
+            int pixels = (toRow - fromRow) * Math.max(1, columnStart[x + 1] - columnStart[x]);
+            if (a[x] == 0) {
+                argb[x] = 0;
+                continue;
+            }
+            int alpha = (int) (a[x] / pixels);
+            argb[x] = alpha << 24
+                    | (int) (r[x] / a[x]) << 16
+                    | (int) (g[x] / a[x]) << 8
+                    | (int) (b[x] / a[x]);
+        }
+        System.arraycopy(argb, 0, s.scaled, 0, width);
+        s.fromRow = fromRow;
+        s.toRow = toRow;
+    }
+
+    /**
+     * Buffers for scaling rows on one thread
+     */
+    private class Scratch {
+
+        final long[] a = new long[width];
+        final long[] r = new long[width];
+        final long[] g = new long[width];
+        final long[] b = new long[width];
+        final int[] row = new int[sourceWidth];
+        final int[] scaled = new int[width];
+        int fromRow = -1;
+        int toRow = -1;
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+
+/**
+ * SerialFrameDecoder splits the bytes received from a serial port into
+ * frames as they arrive. Received bytes are kept in a fixed size ring
+ * buffer and each byte is looked at once: delimiters are matched with a
+ * KMP state machine, so a delimiter split across two reads is still found.
+ * Completed frames are queued in order; when the queue is full the oldest
+ * frame is dropped.
+ * <p>
+ * There are three framing modes:
+ * <ul>
+ * <li>Delimited: a frame starts with the begin marker and runs up to the end
+ * marker. The frame includes the begin marker but not the end marker. When
+ * the begin marker appears again before the end, the frame restarts there.
+ * <li>Delimiter only: with an empty begin marker, each frame is the data up
+ * to the next end marker, which is left out.
+ * <li>Length prefixed: each frame starts with its length as a 1, 2 or 4 byte
+ * big-endian number, followed by that many bytes. Markers are ignored.
+ * </ul>
+ */
+public class SerialFrameDecoder {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    public static final int DEFAULT_MAX_FRAMES = 256;
+
+    private final byte[] ring;
+    private final BlockingQueue<byte[]> frames;
+    private int writePos = 0;
+    private int frameStart = 0;
+    private int frameLength = 0;
+    private boolean inFrame = false;
+    private long droppedFrames = 0;
+
+    private byte[] begin = new byte[0];
+    private byte[] end = new byte[0];
+    private int[] beginFailure = new int[0];
+    private int[] endFailure = new int[0];
+    private int beginMatched = 0;
+    private int endMatched = 0;
+
+    private int lengthBytes = 0;
+    private int lengthRead = 0;
+    private int expectedLength = 0;
+
+    /**
+     * Creates a decoder with the default capacity and queue size
+     */
+    public SerialFrameDecoder() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_FRAMES);
+    }
+
+    /**
+     * Creates a decoder
+     *
+     * @param capacity The longest frame that can be received, in bytes
+     * @param maxFrames The number of frames to hold before the oldest is
+     * dropped
+     */
+    public SerialFrameDecoder(int capacity, int maxFrames) {
+        ring = new byte[Math.max(1, capacity)];
+        frames = new ArrayBlockingQueue<byte[]>(Math.max(1, maxFrames));
+    }
+
+    /**
+     * Use begin and end markers. An empty begin marker frames on the end
+     * marker alone. Any partly received frame is discarded.
+     *
+     * @param begin The begin marker
+     * @param end The end marker
+     */
+    public synchronized void setDelimiters(byte[] begin, byte[] end) {
+        this.begin = begin == null ? new byte[0] : begin;
+        this.end = end == null ? new byte[0] : end;
+        beginFailure = failureTable(this.begin);
+        endFailure = failureTable(this.end);
+        lengthBytes = 0;
+        reset();
+    }
+
+    /**
+     * Use length prefixed frames instead of markers. Any partly received
+     * frame is discarded.
+     *
+     * @param lengthBytes The size of the length prefix: 1, 2 or 4, or 0 to
+     * go back to the markers
+     */
+    public synchronized void setLengthPrefix(int lengthBytes) {
+        if (lengthBytes != 0 && lengthBytes != 1 && lengthBytes != 2 && lengthBytes != 4) {
+            throw new IllegalArgumentException("Length prefix must be 1, 2 or 4 bytes");
+        }
+        this.lengthBytes = lengthBytes;
+        reset();
+    }
+
+    /**
+     * Discard any partly received frame
+     */
+    public synchronized void reset() {
+        inFrame = false;
+        frameLength = 0;
+        frameStart = writePos;
+        beginMatched = 0;
+        endMatched = 0;
+        lengthRead = 0;
+        expectedLength = 0;
+    }
+
+    /**
+     * Builds the KMP failure table: for each prefix of the pattern, the
+     * length of the longest proper prefix that is also a suffix of it
+     */
+    private static int[] failureTable(byte[] pattern) {
+        int[] failure = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = failure[k - 1];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+        return failure;
+    }
+
+    /**
+     * Advances a KMP matcher by one byte
+     *
+     * @return the number of pattern bytes matched so far
+     */
+    private static int match(byte[] pattern, int[] failure, int matched, byte b) {
+        if (matched == pattern.length) {
+            matched = failure[matched - 1];
+        }
+        while (matched > 0 && pattern[matched] != b) {
+            matched = failure[matched - 1];
+        }
+        if (pattern[matched] == b) {
+            matched++;
+        }
+        return matched;
+    }
+
+    /**
+     * Feed received bytes to the decoder
+     *
+     * @param data The received bytes
+     * @return The number of frames completed by these bytes
+     */
+    public synchronized int feed(byte[] data) {
+        int completed = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (feed(data[i])) {
+                completed++;
+            }
+        }
+        return completed;
+    }
+
+    private boolean feed(byte b) {
+        if (lengthBytes > 0) {
+            return feedLengthPrefixed(b);
+        }
+        if (end.length == 0) {
+            return false;
+        }
+
+        if (begin.length > 0) {
+            beginMatched = match(begin, beginFailure, beginMatched, b);
+            if (beginMatched == begin.length) {
+                // The frame starts at this begin marker, earlier bytes are
+                // dropped. The marker's last byte is added below.
+                inFrame = true;
+                frameStart = writePos;
+                frameLength = 0;
+                endMatched = 0;
+                for (int i = 0; i < begin.length - 1; i++) {
+                    append(begin[i]);
+                }
+            }
+        } else {
+            inFrame = true;
+        }
+        if (!inFrame) {
+            return false;
+        }
+
+        if (!append(b)) {
+            return false;
+        }
+        endMatched = match(end, endFailure, endMatched, b);
+        if (endMatched == end.length && frameLength >= (begin.length + end.length)) {
+            int length = frameLength - end.length;
+            boolean emitted = length > 0;
+            if (emitted) {
+                emit(length);
+            }
+            // Empty lines between delimiter only frames are skipped
+            inFrame = false;
+            frameStart = writePos;
+            frameLength = 0;
+            beginMatched = 0;
+            endMatched = 0;
+            return emitted;
+        }
+        return false;
+    }
+
+    private boolean feedLengthPrefixed(byte b) {
+        if (lengthRead < lengthBytes) {
+            expectedLength = (expectedLength << 8) | (b & 0xFF);
+            lengthRead++;
+            if (lengthRead < lengthBytes) {
+                return false;
+            }
+            if (expectedLength < 0 || expectedLength > ring.length) {
+                LogIt.log(Level.WARNING, "Serial frame of " + expectedLength + " bytes is longer than the "
+                        + ring.length + " byte buffer, resetting.");
+                reset();
+                return false;
+            }
+            inFrame = true;
+            frameStart = writePos;
+            frameLength = 0;
+            if (expectedLength > 0) {
+                return false;
+            }
+        } else if (!append(b)) {
+            return false;
+        }
+
+        if (frameLength == expectedLength) {
+            emit(frameLength);
+            reset();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a byte to the current frame
+     *
+     * @return false if the frame outgrew the buffer and was discarded
+     */
+    private boolean append(byte b) {
+        if (frameLength == ring.length) {
+            LogIt.log(Level.WARNING, "Serial frame is longer than the " + ring.length + " byte buffer, discarding it.");
+            reset();
+            return false;
+        }
+        ring[writePos] = b;
+        writePos = (writePos + 1) % ring.length;
+        frameLength++;
+        return true;
+    }
+
+    /**
+     * Copies the first <code>length</code> bytes of the current frame out of
+     * the ring and queues them
+     */
+    private void emit(int length) {
+        byte[] frame = new byte[length];
+        int first = Math.min(length, ring.length - frameStart);
+        System.arraycopy(ring, frameStart, frame, 0, first);
+        System.arraycopy(ring, 0, frame, first, length - first);
+        while (!frames.offer(frame)) {
+            frames.poll();
+            droppedFrames++;
+        }
+        frameStart = writePos;
+        frameLength = 0;
+    }
+
+    /**
+     * Take the oldest completed frame
+     *
+     * @return The frame, or null if there is none
+     */
+    public byte[] poll() {
+        return frames.poll();
+    }
+
+    /**
+     * Take the oldest completed frame, waiting for one if there is none
+     *
+     * @return The frame
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public byte[] take() throws InterruptedException {
+        return frames.take();
+    }
+
+    /**
+     * @return the number of completed frames waiting to be taken
+     */
+    public int getQueuedFrames() {
+        return frames.size();
+    }
+
+    /**
+     * @return the number of frames dropped because the queue was full
+     */
+    public synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import jssc.SerialPort;
+import jssc.SerialPortEvent;
+import jssc.SerialPortEventListener;
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+
+/**
+ * SerialPortConnection is one open serial port with its own settings,
+ * framing and threads. Each port is read by its own jssc event thread, its
+ * frames are passed to the browser by its own dispatcher and it is written
+ * by its own SerialPortWriter, so several ports can be written and read at
+ * the same time.
+ */
+public class SerialPortConnection {
+
+    private final String portName;
+    private final SerialPort port;
+    private final BrowserTools btools;
+    private final SerialFrameDecoder frameDecoder = new SerialFrameDecoder();
+    private final SerialPortWriter writer;
+    private Thread frameDispatcher;
+
+    // How long closing waits for queued data to be sent
+    private static final int CLOSE_WAIT_MILLIS = 5000;
+
+    // Beginning and ending patterns that signify port has responded
+    private byte[] begin;
+    private byte[] end;
+
+    // Timeout to wait before giving up on reading the specified amount of bytes
+    private final int timeout;
+
+    private volatile byte[] output;
+
+    /**
+     * Create a connection for a port, not opened yet
+     *
+     * @param portName The name of the port
+     * @param btools Used to pass returned data to the browser
+     * @param timeout Timeout in milliseconds for reading bytes from the port
+     */
+    SerialPortConnection(String portName, BrowserTools btools, int timeout) {
+        this.portName = portName;
+        this.port = new SerialPort(portName);
+        this.writer = new SerialPortWriter(port, portName);
+        this.btools = btools;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Open the port and start listening for returned data
+     *
+     * @return true if the port was opened
+     */
+    boolean open() {
+        boolean opened = AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
+            public Boolean run() {
+                try {
+                    return port.openPort();
+                } catch (SerialPortException ex) {
+                    LogIt.log(Level.SEVERE, "Could not open serial port.", ex);
+                    return false;
+                }
+            }
+        });
+        if (!opened) {
+            return false;
+        }
+
+        // Add a listener to the port to check for incoming data
+        try {
+            port.addEventListener(new SerialPortEventListener() {
+                public void serialEvent(SerialPortEvent spe) {
+                    serialEventListener(spe);
+                }
+            });
+        } catch (SerialPortException ex) {
+            LogIt.log(Level.SEVERE, "Could not add listener to serial port.", ex);
+        }
+        startFrameDispatcher();
+        writer.start();
+        return true;
+    }
+
+    /**
+     * Close the port once the data queued for it has been sent
+     *
+     * @return true if the port was closed properly
+     */
+    boolean close() {
+        writer.close(CLOSE_WAIT_MILLIS);
+        boolean closed = false;
+        try {
+            closed = port.closePort();
+        } catch (SerialPortException ex) {
+            LogIt.log(Level.SEVERE, "Could not close serial port.", ex);
+        }
+        stopFrameDispatcher();
+        return closed;
+    }
+
+    /**
+     * @return true if the port is open
+     */
+    public boolean isOpened() {
+        return port.isOpened();
+    }
+
+    /**
+     * @return the name of the port
+     */
+    public String getPortName() {
+        return portName;
+    }
+
+    /**
+     * Set the marker at the beginning of returned data
+     *
+     * @param begin The beginning characters, or empty to frame on the ending
+     * characters only
+     */
+    public synchronized void setBegin(byte[] begin) {
+        this.begin = begin;
+        frameDecoder.setDelimiters(begin, end);
+    }
+
+    /**
+     * Set the marker at the ending of returned data
+     *
+     * @param end The ending characters
+     */
+    public synchronized void setEnd(byte[] end) {
+        this.end = end;
+        frameDecoder.setDelimiters(begin, end);
+    }
+
+    /**
+     * Frame returned data by a length prefix instead of the markers
+     *
+     * @param lengthBytes The size of the length prefix: 1, 2 or 4, or 0 to use
+     * the markers again
+     */
+    public synchronized void setLengthPrefix(int lengthBytes) {
+        if (lengthBytes == 0) {
+            frameDecoder.setDelimiters(begin, end);
+        } else {
+            frameDecoder.setLengthPrefix(lengthBytes);
+        }
+    }
+
+    /**
+     * Sets the properties for communicating with the port, used from the
+     * next send. The port is only reconfigured when they change.
+     *
+     * @param baudRate
+     * @param dataBits
+     * @param stopBits
+     * @param parity
+     * @param flowControl
+     */
+    public void setProperties(int baudRate, int dataBits, int stopBits, int parity, int flowControl) {
+        writer.setParams(baudRate, dataBits, stopBits, parity, flowControl);
+    }
+
+    /**
+     * Queue data to be sent to the port. Data sent while the port is busy is
+     * written together with the next write.
+     *
+     * @param data The data to send
+     * @return A Future that gives true once the data has left the port's
+     * output buffer
+     */
+    public Future<Boolean> send(byte[] data) {
+        return writer.write(data);
+    }
+
+    /**
+     * Get the last frame returned by the port, once
+     *
+     * @return The returned data, or null if nothing new was returned
+     */
+    public String getReturnData() {
+        byte[] returned = output;
+        output = null;
+        return returned == null ? null : new String(returned);
+    }
+
+    /**
+     * A listener that is attached to the serial port to monitor for any
+     * returned data. Received bytes are handed to the frame decoder;
+     * completed frames are passed to the browser by the dispatcher thread, so
+     * a slow callback doesn't hold up reading the port.
+     *
+     * @param event A reference to the serial port returned data event
+     */
+    private void serialEventListener(SerialPortEvent event) {
+        try {
+            // Receive data
+            if (event.isRXCHAR()) {
+                byte[] received = port.readBytes(event.getEventValue(), timeout);
+                if (received != null) {
+                    frameDecoder.feed(received);
+                }
+            }
+        } catch (SerialPortException e) {
+            LogIt.log(Level.SEVERE, "Exception occured while reading data from port.", e);
+        } catch (SerialPortTimeoutException e) {
+            LogIt.log(Level.WARNING, "Timeout occured waiting for port to respond.  Timeout value: " + timeout, e);
+        }
+    }
+
+    /**
+     * Start the thread that passes completed frames to the browser, in the
+     * order they were received. The port name is passed after the data.
+     */
+    private void startFrameDispatcher() {
+        frameDispatcher = new Thread("qz-serial-frames-" + portName) {
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        byte[] frame = frameDecoder.take();
+                        output = frame;
+                        LogIt.log("Received Serial Data from [" + portName + "]: " + new String(frame));
+                        btools.notifyBrowser("qzSerialReturned", new Object[]{new String(frame), portName});
+                    }
+                } catch (InterruptedException ex) {
+                    // Port closed
+                }
+            }
+        };
+        frameDispatcher.setDaemon(true);
+        frameDispatcher.start();
+    }
+
+    private void stopFrameDispatcher() {
+        if (frameDispatcher != null) {
+            frameDispatcher.interrupt();
+            frameDispatcher = null;
+        }
+    }
+}
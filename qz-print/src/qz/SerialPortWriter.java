@@ -0,0 +1,299 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import jssc.SerialPort;
+import jssc.SerialPortException;
+
+/**
+ * SerialPortWriter writes to a serial port on its own thread. Sends queued
+ * while a write is in progress are joined into one write, the port
+ * parameters are only set again after they change, and each send returns a
+ * Future that completes once its bytes have left the port's output buffer.
+ */
+public class SerialPortWriter {
+
+    // How often the output buffer is checked while it drains
+    private static final int DRAIN_POLL_MILLIS = 2;
+    // How long a drain may take beyond the time the bytes need at the baud rate
+    private static final int DRAIN_GRACE_MILLIS = 2000;
+    // Bits sent per byte, allowing for start, parity and stop bits
+    private static final int BITS_PER_BYTE = 11;
+
+    private static final Callable<Boolean> NO_TASK = new Callable<Boolean>() {
+        public Boolean call() {
+            return Boolean.FALSE;
+        }
+    };
+
+    private final SerialPort port;
+    private final String portName;
+    private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+    private Thread writer;
+    private volatile boolean closing = false;
+
+    // Port parameters, applied by the writer thread when changed
+    private int baudRate;
+    private int dataBits;
+    private int stopBits;
+    private int parity;
+    private int flowControl;
+    private boolean paramsChanged = false;
+
+    /**
+     * @param port The opened port to write to
+     * @param portName The name of the port, used in the log
+     */
+    SerialPortWriter(SerialPort port, String portName) {
+        this.port = port;
+        this.portName = portName;
+    }
+
+    /**
+     * Set the port parameters used for the following writes. The port is
+     * only reconfigured if they differ from the ones set before.
+     *
+     * @param baudRate
+     * @param dataBits
+     * @param stopBits
+     * @param parity
+     * @param flowControl
+     */
+    public synchronized void setParams(int baudRate, int dataBits, int stopBits, int parity, int flowControl) {
+        if (baudRate != this.baudRate || dataBits != this.dataBits || stopBits != this.stopBits
+                || parity != this.parity || flowControl != this.flowControl) {
+            this.baudRate = baudRate;
+            this.dataBits = dataBits;
+            this.stopBits = stopBits;
+            this.parity = parity;
+            this.flowControl = flowControl;
+            paramsChanged = true;
+        }
+    }
+
+    /**
+     * Queue data to be written to the port
+     *
+     * @param data The data to write
+     * @return A Future that gives true once the data has been sent, or false
+     * if it could not be written or the port was closed first
+     */
+    public Future<Boolean> write(byte[] data) {
+        PendingWrite pending = new PendingWrite(data);
+        synchronized (queue) {
+            if (!closing) {
+                queue.add(pending);
+                return pending;
+            }
+        }
+        LogIt.log(Level.WARNING, "Serial Port [" + portName + "] is closing, data not sent.");
+        pending.complete(false);
+        return pending;
+    }
+
+    /**
+     * Start the writer thread
+     */
+    void start() {
+        closing = false;
+        writer = new Thread("qz-serial-writer-" + portName) {
+            public void run() {
+                writeQueued();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop taking new data and wait for the queued data to be written
+     *
+     * @param waitMillis How long to wait for queued data
+     */
+    void close(long waitMillis) {
+        synchronized (queue) {
+            closing = true;
+        }
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                writer.join(waitMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        // Anything left could not be sent
+        PendingWrite pending;
+        while ((pending = queue.poll()) != null) {
+            pending.complete(false);
+        }
+    }
+
+    /**
+     * Writer thread loop. Waits for data, then writes everything queued by
+     * then in one go. Once interrupted by close(), the rest of the queue is
+     * written before the thread ends.
+     */
+    private void writeQueued() {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        while (true) {
+            if (closing) {
+                if (queue.peek() == null) {
+                    return;
+                }
+            } else {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException ex) {
+                    // Closing, write what is left
+                    continue;
+                }
+            }
+            queue.drainTo(batch);
+            if (!batch.isEmpty()) {
+                boolean sent = writeBatch(batch);
+                for (PendingWrite pending : batch) {
+                    pending.complete(sent);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write a batch of queued data with one native write and wait for the
+     * output buffer to drain
+     *
+     * @return true if the data was written and has left the output buffer
+     */
+    private boolean writeBatch(List<PendingWrite> batch) {
+        final byte[] data;
+        if (batch.size() == 1) {
+            data = batch.get(0).data;
+        } else {
+            int length = 0;
+            for (PendingWrite pending : batch) {
+                length += pending.data.length;
+            }
+            data = new byte[length];
+            int pos = 0;
+            for (PendingWrite pending : batch) {
+                System.arraycopy(pending.data, 0, data, pos, pending.data.length);
+                pos += pending.data.length;
+            }
+        }
+
+        final int[] params;
+        synchronized (this) {
+            params = paramsChanged ? new int[]{baudRate, dataBits, stopBits, parity, flowControl} : null;
+            paramsChanged = false;
+        }
+
+        Boolean written = AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
+            public Boolean run() {
+                try {
+                    if (params != null) {
+                        port.setParams(params[0], params[1], params[2], params[3]);
+                        port.setFlowControlMode(params[4]);
+                    }
+                    LogIt.log("Sending " + data.length + " bytes to [" + portName + "].");
+                    return port.writeBytes(data);
+                } catch (SerialPortException ex) {
+                    LogIt.log(Level.SEVERE, "Could not send data to serial port.", ex);
+                    return false;
+                }
+            }
+        });
+        if (!written) {
+            if (params != null) {
+                // Try the parameters again with the next write
+                synchronized (this) {
+                    paramsChanged = true;
+                }
+            }
+            return false;
+        }
+        return waitForDrain(data.length);
+    }
+
+    /**
+     * Wait until the port's output buffer is empty. Sleeps for the time the
+     * bytes need at the current baud rate before checking.
+     *
+     * @param length The number of bytes written
+     * @return true if the buffer drained in time
+     */
+    private boolean waitForDrain(int length) {
+        int baud;
+        synchronized (this) {
+            baud = baudRate;
+        }
+        long sendMillis = baud > 0 ? (long) length * BITS_PER_BYTE * 1000 / baud : 0;
+        long deadline = System.currentTimeMillis() + sendMillis + DRAIN_GRACE_MILLIS;
+        try {
+            if (sendMillis > 0) {
+                Thread.sleep(sendMillis);
+            }
+            while (port.getOutputBufferBytesCount() > 0) {
+                if (System.currentTimeMillis() >= deadline) {
+                    LogIt.log(Level.WARNING, "Serial Port [" + portName + "] output did not drain in time.");
+                    return false;
+                }
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            // Closing; the bytes were handed to the port
+            return true;
+        } catch (SerialPortException ex) {
+            LogIt.log(Level.WARNING, "Could not check serial port output buffer.", ex);
+            return true;
+        }
+    }
+
+    /**
+     * Data waiting to be written, and the Future given for it
+     */
+    private static class PendingWrite extends FutureTask<Boolean> {
+
+        private final byte[] data;
+
+        PendingWrite(byte[] data) {
+            super(NO_TASK);
+            this.data = data;
+        }
+
+        void complete(boolean sent) {
+            set(sent);
+        }
+    }
+}
@@ -24,25 +24,28 @@ package qz;
 import java.applet.Applet;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import javax.print.PrintException;
 import javax.print.PrintService;
 import jssc.SerialPort;
-import jssc.SerialPortEvent;
-import jssc.SerialPortEventListener;
-import jssc.SerialPortException;
 import jssc.SerialPortList;
-import jssc.SerialPortTimeoutException;
 
 /**
  * SerialPrinter implements the Printer class and provides functions for sending
- * and processing received serial data.
+ * and processing received serial data. Several ports can be open at once; each
+ * is a SerialPortConnection kept by port name, with its own settings, framing
+ * and listener threads.
  * 
  * @author Thomas Hart II
  */
 public class SerialPrinter implements Printer {
 
-    // Serial port attributes obtained from the system
+    // Serial port attributes given to ports when they are opened
     private int baudRate;
     private int dataBits;
     private int stopBits;
@@ -53,22 +56,17 @@ public class SerialPrinter implements Printer {
     // Beginning and ending patterns that signify port has responded
     private byte[] begin = { '\u0002' };
     private byte[] end = { '\r' };
+    private int lengthPrefix = 0;
     
     // Timeout to wait before giving up on reading the specified amount of bytes
     private int timeout;
     
-    // A buffer to hold data returned from the serial port
-    private ByteArrayBuilder outputBuffer;
-    
-    // The informaiton to be sent to the serial port
-    private ByteArrayBuilder inputBuffer;
-    
-    private byte[] output;
+    // The open ports by name, and the name of the port opened last
+    private final Map<String, SerialPortConnection> connections = new HashMap<String, SerialPortConnection>();
+    private String portName;
     
-    private SerialPort port = null;
     private String serialPorts;
     private String[] portArray;
-    private String portName;
     private final Applet applet;
     private final BrowserTools btools;
     private final boolean ready;
@@ -80,7 +78,6 @@ public class SerialPrinter implements Printer {
      * @param applet 
      */
     public SerialPrinter(Applet applet) {
-        //port = new SerialPort(portName);
         this.baudRate = SerialPort.BAUDRATE_9600;
         this.dataBits = SerialPort.DATABITS_8;
         this.stopBits = SerialPort.STOPBITS_1;
@@ -129,6 +126,10 @@ public class SerialPrinter implements Printer {
         
     }
     
+    public boolean setCopies(int copies) {
+        return false;
+    }
+    
     /**
      * findPorts starts the process of finding the list of serial ports.
      */
@@ -155,7 +156,9 @@ public class SerialPrinter implements Printer {
     }
 
     /**
-     * openPort creates a port reference and opens it.
+     * openPort creates a port reference and opens it. Ports that are already
+     * open stay open. The port opened last is used by the functions that
+     * don't take a port name.
      * 
      * @param portName The name of the port to open
      * @return A boolean representing whether or not opening the port succeeded.
@@ -164,48 +167,37 @@ public class SerialPrinter implements Printer {
         if(!serialPortsFound) {
             findPorts();
         }
-        if (port == null) {
-            port = new SerialPort(this.portName = portName);
-            
-            // Use a privileged action to open the port
-            AccessController.doPrivileged(new PrivilegedAction<Object>() {
-                public Object run() {
-                    try {
-                        port.openPort();
-                    } catch (SerialPortException ex) {
-                        port = null;
-                        LogIt.log(Level.SEVERE, "Could not open serial port.", ex);
-                    }
-                    return null;
+        boolean opened;
+        synchronized (connections) {
+            SerialPortConnection connection = connections.get(portName);
+            if (connection == null) {
+                connection = new SerialPortConnection(portName, btools, timeout);
+                connection.setProperties(baudRate, dataBits, stopBits, parity, flowControl);
+                connection.setBegin(begin);
+                connection.setEnd(end);
+                connection.setLengthPrefix(lengthPrefix);
+                if (connection.open()) {
+                    connections.put(portName, connection);
+                    LogIt.log("Opened Serial Port " + portName);
                 }
-            });
-            
-            // Add a listener to the port to check for incoming data
-            try {
-                port.addEventListener(new SerialPortEventListener() {
-                    public void serialEvent(SerialPortEvent spe) {
-                        serialEventListener(spe);
-                    }
-                });
-            } catch (SerialPortException ex) {
-                LogIt.log(Level.SEVERE, "Could not add listener to serial port.", ex);
+            } else {
+                LogIt.log(Level.WARNING, "Serial Port [" + portName + "] already appears to be open.");
+            }
+            opened = connection.isOpened();
+            if (opened) {
+                this.portName = portName;
             }
-            
-            this.portName = portName;
-            LogIt.log("Opened Serial Port " + this.portName);
-        } else {
-            LogIt.log(Level.WARNING, "Serial Port [" + this.portName + "] already appears to be open.");
         }
         this.btools.notifyBrowser("qzDoneOpeningPort", portName);
-        return port.isOpened();
+        return opened;
     }
     
     /**
-     * closePort closes the currently open port. A port name is provided but is
-     * only used in the log. Since only one port can be open at a time, 
-     * closePort does not require you to specify the correct port.
+     * closePort closes the named port. If no port name is given every open
+     * port is closed, and if only one port is open it is closed whatever
+     * name is given.
      * 
-     * @param portName The name of the port to close. Only used in log.
+     * @param portName The name of the port to close
      * @return A boolean representing whether the close routine was successful.
      */
     public boolean closePort(String portName) {
@@ -213,60 +205,140 @@ public class SerialPrinter implements Printer {
     }
 
     /**
-     * closePort closes the currently open port. A port name is provided but is
-     * only used in the log. Since only one port can be open at a time, 
-     * closePort does not require you to specify the correct port.
+     * closePort closes the named port. If no port name is given every open
+     * port is closed, and if only one port is open it is closed whatever
+     * name is given.
      * 
-     * @param portName The name of the port to close. Only used in log.
+     * @param portName The name of the port to close
      * @param warnClosed Warn the user if the port is already closed
      * @return A boolean representing whether the close routine was successful.
      */
     public boolean closePort(String portName, boolean warnClosed) {
-        if (port == null || !port.isOpened()) {
+        List<SerialPortConnection> closing = new ArrayList<SerialPortConnection>();
+        synchronized (connections) {
+            if (portName == null || portName.length() == 0) {
+                closing.addAll(connections.values());
+            } else if (connections.containsKey(portName)) {
+                closing.add(connections.get(portName));
+            } else if (connections.size() == 1) {
+                closing.addAll(connections.values());
+            }
+            for (SerialPortConnection connection : closing) {
+                connections.remove(connection.getPortName());
+            }
+            if (this.portName != null && !connections.containsKey(this.portName)) {
+                this.portName = null;
+            }
+        }
+        
+        if (closing.isEmpty()) {
             if (warnClosed) {
                 LogIt.log(Level.WARNING, "Serial Port [" + portName + "] does not appear to be open.");
             }
             return false;
         }
         
-        boolean closed = false;
-        try {
-            closed = port.closePort();
-        } catch (SerialPortException ex) {
-            LogIt.log(Level.SEVERE, "Could not close serial port.", ex);
-        }
-        
-        if (!closed) {
-            LogIt.log(Level.WARNING, "Serial Port [" + portName + "] was not closed properly.");
-        } else {
-            LogIt.log("Port [" + portName + "] closed successfully.");
+        boolean closed = true;
+        for (SerialPortConnection connection : closing) {
+            if (!connection.close()) {
+                closed = false;
+                LogIt.log(Level.WARNING, "Serial Port [" + connection.getPortName() + "] was not closed properly.");
+            } else {
+                LogIt.log("Port [" + connection.getPortName() + "] closed successfully.");
+            }
+            btools.notifyBrowser("qzDoneClosingPort", connection.getPortName());
         }
-        btools.notifyBrowser("qzDoneClosingPort", portName);
-        port = null;
-        this.portName = null;
         return closed;
     }
 
     /**
-     * Set the character to mark the beginning of returned serial data.
+     * Set the character to mark the beginning of returned serial data, for
+     * ports opened later and the port opened last.
      * 
      * @param serialBegin The beginning character.
      */
     public void setSerialBegin(ByteArrayBuilder serialBegin) {
         this.begin = serialBegin.getByteArray();
+        SerialPortConnection connection = getConnection(null);
+        if (connection != null) {
+            connection.setBegin(begin);
+        }
+    }
+
+    /**
+     * Set the character to mark the beginning of returned serial data on
+     * an open port.
+     * 
+     * @param portName The name of the port
+     * @param serialBegin The beginning character.
+     */
+    public void setSerialBegin(String portName, ByteArrayBuilder serialBegin) {
+        SerialPortConnection connection = getConnection(portName);
+        if (connection != null) {
+            connection.setBegin(serialBegin.getByteArray());
+        }
     }
 
     /**
-     * Set the character to mark the ending of returned serial data.
+     * Set the character to mark the ending of returned serial data, for
+     * ports opened later and the port opened last.
      * 
      * @param serialEnd The ending character.
      */
     public void setSerialEnd(ByteArrayBuilder serialEnd) {
         this.end = serialEnd.getByteArray();
+        SerialPortConnection connection = getConnection(null);
+        if (connection != null) {
+            connection.setEnd(end);
+        }
     }
 
     /**
-     * Sets the properties for communicating with serial ports.
+     * Set the character to mark the ending of returned serial data on an
+     * open port.
+     * 
+     * @param portName The name of the port
+     * @param serialEnd The ending character.
+     */
+    public void setSerialEnd(String portName, ByteArrayBuilder serialEnd) {
+        SerialPortConnection connection = getConnection(portName);
+        if (connection != null) {
+            connection.setEnd(serialEnd.getByteArray());
+        }
+    }
+
+    /**
+     * Frame returned serial data by a length prefix instead of the begin
+     * and end characters, for ports opened later and the port opened last.
+     * 
+     * @param lengthBytes The size of the big-endian length before each frame:
+     * 1, 2 or 4, or 0 to use the begin and end characters again
+     */
+    public void setSerialLengthPrefix(int lengthBytes) {
+        this.lengthPrefix = lengthBytes;
+        SerialPortConnection connection = getConnection(null);
+        if (connection != null) {
+            connection.setLengthPrefix(lengthBytes);
+        }
+    }
+
+    /**
+     * Frame returned serial data on an open port by a length prefix.
+     * 
+     * @param portName The name of the port
+     * @param lengthBytes The size of the big-endian length before each frame:
+     * 1, 2 or 4, or 0 to use the begin and end characters again
+     */
+    public void setSerialLengthPrefix(String portName, int lengthBytes) {
+        SerialPortConnection connection = getConnection(portName);
+        if (connection != null) {
+            connection.setLengthPrefix(lengthBytes);
+        }
+    }
+
+    /**
+     * Sets the properties for communicating with serial ports, for ports
+     * opened later and the port opened last.
      * 
      * @param baud
      * @param dataBits
@@ -280,51 +352,100 @@ public class SerialPrinter implements Printer {
         this.stopBits = SerialUtilities.parseStopBits(stopBits);
         this.parity = SerialUtilities.parseParity(parity);
         this.flowControl = SerialUtilities.parseFlowControl(flowControl);
+        SerialPortConnection connection = getConnection(null);
+        if (connection != null) {
+            connection.setProperties(this.baudRate, this.dataBits, this.stopBits, this.parity, this.flowControl);
+        }
     }
 
     /**
-     * Send serial data to the opened port.
+     * Sets the properties for communicating with an open port.
      * 
-     * @param serialData A string of the data to send.
+     * @param portName The name of the port
+     * @param baud
+     * @param dataBits
+     * @param stopBits
+     * @param parity
+     * @param flowControl
      */
-    public void send(String serialData) {
-        if(port != null) {
-            inputBuffer = getInputBuffer();
-            inputBuffer.append(serialData.getBytes());
-            AccessController.doPrivileged(new PrivilegedAction<Object>() {
-                public Object run() {
-                    try {
-                        port.setParams(baudRate, dataBits, stopBits, parity);
-                        port.setFlowControlMode(flowControl);
-                        LogIt.log("Sending data to [" + portName + "]:\r\n\r\n" + new String(getInputBuffer().getByteArray()) + "\r\n\r\n");
-                        port.writeBytes(getInputBuffer().getByteArray());
-                        getInputBuffer().clear();
-                    } catch (SerialPortException ex) {
-                        LogIt.log(Level.SEVERE, "Could not send data to serial port.", ex);
-                    }
-                    return null;
-                }
-            });
+    public void setSerialProperties(String portName, String baud, String dataBits, String stopBits, String parity, String flowControl) {
+        SerialPortConnection connection = getConnection(portName);
+        if (connection != null) {
+            connection.setProperties(SerialUtilities.parseBaudRate(baud),
+                    SerialUtilities.parseDataBits(dataBits),
+                    SerialUtilities.parseStopBits(stopBits),
+                    SerialUtilities.parseParity(parity),
+                    SerialUtilities.parseFlowControl(flowControl));
         }
-        else {
+    }
+
+    /**
+     * Send serial data to the port opened last.
+     * 
+     * @param serialData A string of the data to send.
+     * @return A Future that gives true once the data has been sent, or null
+     * if no port is open
+     */
+    public Future<Boolean> send(String serialData) {
+        return send(null, serialData);
+    }
+
+    /**
+     * Send serial data to an open port. The data is queued and written by the
+     * port's writer thread; different ports can be sent to at the same time.
+     * 
+     * @param portName The name of the port, or empty for the port opened last
+     * @param serialData A string of the data to send.
+     * @return A Future that gives true once the data has been sent, or null
+     * if the port isn't open
+     */
+    public Future<Boolean> send(String portName, String serialData) {
+        SerialPortConnection connection = getConnection(portName);
+        if (connection != null) {
+            return connection.send(serialData.getBytes());
+        } else if (portName == null || portName.length() == 0) {
             LogIt.log(Level.SEVERE, "No serial port is open.");
         }
+        return null;
     }
 
     /**
-     * Get any returned serial data.
+     * Get any returned serial data from the port opened last.
      * 
      * @return The returned data
      */
     public String getReturnData() {
-        if(output != null) {
-            String returnData = new String(output);
-            output = null;
-            return returnData;
+        return getReturnData(null);
+    }
+
+    /**
+     * Get any returned serial data from an open port.
+     * 
+     * @param portName The name of the port, or empty for the port opened last
+     * @return The returned data
+     */
+    public String getReturnData(String portName) {
+        SerialPortConnection connection = getConnection(portName);
+        return connection == null ? null : connection.getReturnData();
+    }
+    
+    /**
+     * Find an open port by name, logging if it isn't open.
+     * 
+     * @param portName The name of the port, or null or empty for the port
+     * opened last
+     * @return The port, or null if it isn't open
+     */
+    private SerialPortConnection getConnection(String portName) {
+        boolean current = portName == null || portName.length() == 0;
+        SerialPortConnection connection;
+        synchronized (connections) {
+            connection = connections.get(current ? this.portName : portName);
         }
-        else {
-            return null;
+        if (connection == null && !current) {
+            LogIt.log(Level.SEVERE, "Serial Port [" + portName + "] is not open.");
         }
+        return connection;
     }
     
     /**
@@ -357,62 +478,4 @@ public class SerialPrinter implements Printer {
             LogIt.log(Level.SEVERE, "Problem communicating with the JSSC class.", ex);
         }
     }
-
-    /**
-     * A listener that is attached to the serial port when data is sent to
-     * monitor for any returned data.
-     * 
-     * @param event A reference to the serial port returned data event
-     */
-    public void serialEventListener(SerialPortEvent event) {
-        try {
-            // Receive data
-            if (event.isRXCHAR()) {
-                getOutputBuffer().append(port.readBytes(event.getEventValue(), timeout));
-                
-                int[] beginPos = ByteUtilities.indicesOfSublist(getOutputBuffer().getByteArray(), begin);
-                int[] endPos = ByteUtilities.indicesOfSublist(getOutputBuffer().getByteArray(), end);
-                if (beginPos.length > 0 && endPos.length > 0) {
-                    int _begin = beginPos[beginPos.length -1];
-                    int _end  = endPos[endPos.length -1];
-                    output = new byte[_end - _begin];
-                    System.arraycopy(getOutputBuffer().getByteArray(), _begin, output, 0, _end - _begin);
-                    getOutputBuffer().clear();
-                }
-                
-                if(output != null) {
-                    LogIt.log("Received Serial Data: " + new String(output));
-                    btools.notifyBrowser("qzSerialReturned", new String(output));
-                }
-                else {
-                    LogIt.log(Level.WARNING, "Received serial data but it was null. Please check the begin and end characters.");
-                }
-            }
-        } catch (SerialPortException e) {
-            LogIt.log(Level.SEVERE, "Exception occured while reading data from port.", e);
-        } catch (SerialPortTimeoutException e) {
-            LogIt.log(Level.WARNING, "Timeout occured waiting for port to respond.  Timeout value: " + timeout, e);
-        }
-        
-    }
-    
-    /**
-     * Grab a reference to or create a ByteArrayBuilder to use as an
-     * input buffer
-     * 
-     * @return The inputBuffer ByteArrayBuilder
-     */
-    public ByteArrayBuilder getInputBuffer() {
-        if (this.inputBuffer == null) {
-            this.inputBuffer = new ByteArrayBuilder();
-        }
-        return this.inputBuffer;
-    }
-    
-    private ByteArrayBuilder getOutputBuffer() {
-        if (this.outputBuffer == null) {
-            this.outputBuffer = new ByteArrayBuilder();
-        }
-        return this.outputBuffer;
-    }
 }
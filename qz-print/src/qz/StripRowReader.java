@@ -0,0 +1,132 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * StripRowReader decodes an image a strip of rows at a time through the
+ * ImageIO reader's source region, so only one strip is held in memory. This
+ * only pays off for formats that can seek to a region without decoding
+ * everything before it, so <code>open</code> only accepts BMP.
+ */
+public class StripRowReader implements ImageRowSource {
+
+    public static final int STRIP_ROWS = 256;
+
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+    private ImageRowReader strip;
+    private int stripTop = -1;
+    private int stripRows = 0;
+
+    private StripRowReader(ImageReader reader) throws IOException {
+        this.reader = reader;
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+    }
+
+    /**
+     * Prepares to read an image in strips
+     *
+     * @param in The image data
+     * @return The reader, or null if the image isn't a BMP
+     * @throws IOException If the image header can't be read
+     */
+    public static StripRowReader open(ImageInputStream in) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        if (!reader.getFormatName().equalsIgnoreCase("bmp")) {
+            reader.dispose();
+            return null;
+        }
+        reader.setInput(in, true, true);
+        return new StripRowReader(reader);
+    }
+
+    /**
+     * @return the width of the image
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the image
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true, strips are decoded as they're reached
+     */
+    public boolean isSequential() {
+        return true;
+    }
+
+    /**
+     * Reads one row, decoding the strip that holds it if needed
+     *
+     * @param y The row to read
+     * @param argb Receives the pixels, must hold at least <code>width</code>
+     * values
+     * @throws IllegalArgumentException If the image data is damaged
+     */
+    public void readRow(int y, int[] argb) {
+        if (y < stripTop || y >= stripTop + stripRows) {
+            stripTop = y;
+            stripRows = Math.min(STRIP_ROWS, height - y);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, stripTop, width, stripRows));
+            try {
+                BufferedImage image = reader.read(0, param);
+                strip = new ImageRowReader(image);
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("Could not decode rows " + stripTop + " to "
+                        + (stripTop + stripRows) + ": " + ex.getMessage());
+            }
+        }
+        strip.readRow(y - stripTop, argb);
+        if (y == height - 1) {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Stops decoding and releases the ImageIO reader
+     */
+    public void close() {
+        reader.dispose();
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+package qz;
+
+import java.util.zip.Deflater;
+
+/**
+ * ZplGraphicEncoder encodes a packed monochrome image as the data of a ZPL
+ * <code>^GFA</code> or <code>~DG</code> command. Besides plain hex there are
+ * the two compressed forms ZPL II printers accept: ASCII compression, which
+ * replaces runs of repeated hex digits and repeated rows with short codes,
+ * and Z64, which is deflated, base64 encoded data followed by a CRC.
+ */
+public class ZplGraphicEncoder {
+
+    /**
+     * Plain hex, two characters per byte
+     */
+    public static final int HEX = 0;
+    /**
+     * ZPL ASCII compression (repeat counts G-Y and g-z, ",", "!" and ":")
+     */
+    public static final int ASCII = 1;
+    /**
+     * Deflate + base64 with a CRC, for firmware that supports
+     * <code>:Z64:</code>
+     */
+    public static final int Z64 = 2;
+    /**
+     * Whichever of the other encodings is shortest for the image
+     */
+    public static final int AUTO = 3;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Encodes a packed image
+     *
+     * @param packed The image, <code>bytesPerRow</code> bytes per row
+     * @param bytesPerRow The length of one row
+     * @param encoding HEX, ASCII, Z64 or AUTO
+     * @return The graphic data
+     */
+    public static String encode(byte[] packed, int bytesPerRow, int encoding) {
+        switch (encoding) {
+            case ASCII:
+                return encodeAscii(packed, bytesPerRow);
+            case Z64:
+                return encodeZ64(packed);
+            case AUTO:
+                String ascii = encodeAscii(packed, bytesPerRow);
+                String z64 = encodeZ64(packed);
+                return z64.length() < ascii.length() ? z64 : ascii;
+            case HEX:
+            default:
+                return ByteUtilities.bytesToHex(packed);
+        }
+    }
+
+    /**
+     * Encodes a packed image with ZPL ASCII compression. A row identical to
+     * the previous one becomes ":", trailing zeros and ones become "," and
+     * "!", and runs of a hex digit are prefixed with a repeat count.
+     *
+     * @param packed The image, <code>bytesPerRow</code> bytes per row
+     * @param bytesPerRow The length of one row
+     * @return The compressed data
+     */
+    public static String encodeAscii(byte[] packed, int bytesPerRow) {
+        int digits = bytesPerRow * 2;
+        int rows = bytesPerRow == 0 ? 0 : packed.length / bytesPerRow;
+        StringBuilder out = new StringBuilder(Math.max(16, packed.length / 4));
+        char[] line = new char[digits];
+
+        for (int y = 0; y < rows; y++) {
+            int offset = y * bytesPerRow;
+            if (y > 0 && sameRow(packed, offset - bytesPerRow, offset, bytesPerRow)) {
+                out.append(':');
+                continue;
+            }
+            for (int i = 0; i < bytesPerRow; i++) {
+                int v = packed[offset + i] & 0xFF;
+                line[i * 2] = HEX_DIGITS[v >>> 4];
+                line[i * 2 + 1] = HEX_DIGITS[v & 0x0F];
+            }
+
+            // Trailing zeros or ones are filled in by the printer
+            int end = digits;
+            char fill = line[digits - 1];
+            if (fill == '0' || fill == 'F') {
+                while (end > 0 && line[end - 1] == fill) {
+                    end--;
+                }
+            }
+
+            int x = 0;
+            while (x < end) {
+                char c = line[x];
+                int run = 1;
+                while (x + run < end && line[x + run] == c) {
+                    run++;
+                }
+                appendCount(out, run);
+                out.append(c);
+                x += run;
+            }
+            if (end < digits) {
+                out.append(fill == '0' ? ',' : '!');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends the repeat count prefix for a run of <code>count</code>
+     * characters. "g" to "z" stand for 20 to 400 in steps of 20 and "G" to
+     * "Y" for 1 to 19; a single character needs no prefix.
+     */
+    private static void appendCount(StringBuilder out, int count) {
+        if (count < 2) {
+            return;
+        }
+        while (count > 400) {
+            out.append('z');
+            count -= 400;
+        }
+        if (count >= 20) {
+            out.append((char) ('g' + count / 20 - 1));
+            count %= 20;
+        }
+        if (count > 0) {
+            out.append((char) ('G' + count - 1));
+        }
+    }
+
+    private static boolean sameRow(byte[] packed, int a, int b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (packed[a + i] != packed[b + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes a packed image as <code>:Z64:</code> data: the deflated image
+     * in base64, followed by the CRC-16 of the base64 text
+     *
+     * @param packed The image
+     * @return The compressed data
+     */
+    public static String encodeZ64(byte[] packed) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(packed);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, packed.length / 4)];
+        ByteArrayBuilder deflated = new ByteArrayBuilder();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            if (n > 0) {
+                byte[] chunk = new byte[n];
+                System.arraycopy(buffer, 0, chunk, 0, n);
+                deflated.append(chunk);
+            }
+        }
+        deflater.end();
+
+        String base64 = Base64.encodeBytes(deflated.getByteArray());
+        int crc = crc16(base64);
+        return new StringBuilder(base64.length() + 11).append(":Z64:").append(base64).append(':')
+                .append(HEX_DIGITS[(crc >> 12) & 0xF]).append(HEX_DIGITS[(crc >> 8) & 0xF])
+                .append(HEX_DIGITS[(crc >> 4) & 0xF]).append(HEX_DIGITS[crc & 0xF]).toString();
+    }
+
+    /**
+     * CRC-16/CCITT (XMODEM) of the characters of <code>s</code>, as used to
+     * check Z64 data
+     */
+    private static int crc16(String s) {
+        int crc = 0;
+        for (int i = 0; i < s.length(); i++) {
+            crc ^= (s.charAt(i) & 0xFF) << 8;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+}